@@ -0,0 +1,222 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  The AssetInstaller copies the files of the
+ *  provided assets to the asset root. The files 
+ *  are copied concurrently, by a given number of
+ *  threads, and only if the target does not have
+ *  the size and mtime of the source already (the
+ *  copies keep the mtimes of their sources).
+ * 
+ *  Instead of copies, hard or symbolic links to the
+ *  sources can be installed. A file which can not be
+ *  linked (e.g. because it is on another file system
+ *  than the asset root) is copied.
+ */
+public class AssetInstaller {
+    public enum Mode { COPY, HARD_LINK, SYMBOLIC_LINK }
+    
+    private int parallelism;
+    private Mode mode;
+    private Map<File, File> sources;
+    
+    public AssetInstaller(int parallelism) { this(parallelism, Mode.COPY); }
+    
+    /**
+     * @param parallelism number of files installed at once
+     * @param mode whether the files are copied or linked
+     */
+    public AssetInstaller(int parallelism, Mode mode) {
+        if (parallelism < 1) { throw new IllegalArgumentException("parallelism must be positive"); }
+        this.parallelism = parallelism;
+        this.mode = mode;
+        this.sources = new LinkedHashMap<File, File>();
+    }
+    
+    public Mode getMode() { return mode; }
+    
+    /**
+     * Adds a file to be installed. If several files
+     * are added for the same target, the one added
+     * last is installed.
+     * 
+     * @param source
+     * @param target
+     */
+    public void add(File source, File target) {
+        sources.remove(target);
+        sources.put(target, source);
+    }
+    
+    /**
+     * Copies (or links) the files which have
+     * been added and are not up to date.
+     * 
+     * @return counts of the copied, linked and skipped files
+     * @throws IOException if a file could not be copied
+     */
+    public InstallReport install() throws IOException {
+        final InstallReport report = new InstallReport();
+        final List<CopyTask> tasks = new ArrayList<CopyTask>();
+        for (Map.Entry<File, File> entry : sources.entrySet()) {
+            tasks.add(new CopyTask(entry.getValue(), entry.getKey(), mode, report));
+        }
+        if (tasks.isEmpty()) { return report; }
+        
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (CopyFailure failure) {
+            throw failure.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        
+        return report;
+    }
+    
+    /**
+     * @param source
+     * @param target
+     * @return true if the target has the size and mtime of the source 
+     *         (which a link to the source has as well)
+     */
+    public static boolean isUpToDate(File source, File target) {
+        return (target.isFile() && (target.length() == source.length()) 
+                && (target.lastModified() == source.lastModified()));
+    }
+    
+    /**
+     * Copies a file to a temporary file next
+     * to its target first, which then replaces
+     * the target, so that the target is never
+     * seen partially written.
+     */
+    private static void copy(File source, File target) throws IOException {
+        File temp = File.createTempFile(target.getName(), ".tmp", makeParentDirectory(target));
+        try {
+            Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            temp.setLastModified(source.lastModified());
+            moveAtomically(temp, target);
+        } finally {
+            temp.delete();
+        }
+    }
+    
+    /**
+     * Links a file the same way as it is copied, 
+     * i.e. a link is created next to the target,
+     * which then replaces the target.
+     * 
+     * @return false if the link could not be created
+     */
+    private static boolean link(File source, File target, Mode mode) throws IOException {
+        File temp = File.createTempFile(target.getName(), ".tmp", makeParentDirectory(target));
+        try {
+            temp.delete(); // only its name is used
+            try {
+                if (Mode.HARD_LINK == mode) {
+                    Files.createLink(temp.toPath(), source.toPath());
+                } else {
+                    Files.createSymbolicLink(temp.toPath(), source.getAbsoluteFile().toPath());
+                }
+            } catch (IOException | UnsupportedOperationException ex) {
+                // e.g. another file system, or no permission to create links
+                return false;
+            }
+            
+            moveAtomically(temp, target);
+            return true;
+        } finally {
+            temp.delete();
+        }
+    }
+    
+    private static File makeParentDirectory(File target) throws IOException {
+        File directory = target.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("couldn't create " + directory);
+        }
+        return directory;
+    }
+    
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Installs a single file.
+     */
+    private static class CopyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private File source, target;
+        private Mode mode;
+        private InstallReport report;
+        
+        public CopyTask(File source, File target, Mode mode, InstallReport report) {
+            this.source = source;
+            this.target = target;
+            this.mode = mode;
+            this.report = report;
+        }
+        
+        @Override
+        protected void compute() {
+            long length = source.length();
+            if (isUpToDate(source, target)) {
+                report.skipped(length);
+                return;
+            }
+            
+            try {
+                if ((Mode.COPY != mode) && link(source, target, mode)) {
+                    report.linked(length);
+                } else {
+                    copy(source, target);
+                    report.copied(length);
+                }
+            } catch (IOException ex) {
+                throw new CopyFailure(new IOException(String.format("couldn't copy %s to %s: %s", source, target, ex.getMessage()), ex));
+            }
+        }
+    }
+    
+    /**
+     * Carries an IOException out of a CopyTask.
+     */
+    private static class CopyFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        public CopyFailure(IOException cause) {
+            super(cause);
+        }
+        
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.georgecalm.sprockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *  The BundleServer serves the concatenations of
+ *  Secretaries over HTTP (with the HttpServer of
+ *  the JDK), each one under a name of its own.
+ * 
+ *  The concatenations are kept encoded in memory,
+ *  along with the hash of their bytes (their ETag),
+ *  and are only built again when a SourceWatcher has
+ *  seen their sources change. Requests with a matching
+ *  If-None-Match or If-Modified-Since header are
+ *  answered with a 304 (Not Modified) and no body.
+ * 
+ *  Unless compression is turned off, gzip and deflate
+ *  variants are kept along with the concatenations
+ *  (compressed in parallel when they are built), and
+ *  are sent to the clients which accept them.
+ */
+public class BundleServer {
+    private static Logger logger = LoggerFactory.getLogger(BundleServer.class);
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private HttpServer server;
+    private ExecutorService executor;
+    private Map<String, Bundle> bundles;
+    private volatile boolean isCompressed = true;
+    private volatile int compressionLevel = Compression.DEFAULT_LEVEL;
+    
+    /**
+     * Creates a server which listens on the given
+     * address once it is started.
+     * 
+     * @param address (with port 0, a free port is chosen)
+     * @throws IOException
+     */
+    public BundleServer(InetSocketAddress address) throws IOException {
+        this.bundles = new ConcurrentHashMap<String, Bundle>();
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+    
+    public InetSocketAddress getAddress() { return server.getAddress(); }
+    
+    public boolean isCompressed() { return isCompressed; }
+    public void setCompressed(boolean isCompressed) { this.isCompressed = isCompressed; }
+    public int getCompressionLevel() { return compressionLevel; }
+    public void setCompressionLevel(int compressionLevel) { this.compressionLevel = compressionLevel; }
+    
+    /**
+     * Serves the concatenation of a Secretary
+     * at "/name", watching its sources.
+     * 
+     * @param name e.g. "application.js"
+     * @param secretary
+     * @throws IOException
+     */
+    public void addBundle(String name, Secretary secretary) throws IOException {
+        Bundle bundle = new Bundle(this, secretary, secretary.watch());
+        Bundle replaced = bundles.put(name, bundle);
+        if (null != replaced) { replaced.watcher.close(); }
+    }
+    
+    public synchronized void start() {
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    /**
+     * Stops the server, and the watchers of
+     * its bundles.
+     * 
+     * @throws IOException
+     */
+    public synchronized void stop() throws IOException {
+        server.stop(0);
+        if (null != executor) { executor.shutdown(); }
+        for (Bundle bundle : bundles.values()) {
+            bundle.watcher.close();
+        }
+    }
+    
+    private void serve(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        Bundle bundle = bundles.get(exchange.getRequestURI().getPath().substring(1));
+        if (null == bundle) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        
+        Encoded encoded;
+        try {
+            encoded = bundle.getEncoded();
+        } catch (IOException ex) {
+            logger.error(String.format("couldn't build %s: %s", exchange.getRequestURI(), ex.getMessage()));
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+        
+        Compression compression = getAcceptedCompression(exchange.getRequestHeaders(), encoded);
+        byte[] bytes = (null == compression) ? encoded.bytes : encoded.variants.get(compression);
+        String etag = encoded.getETag(compression);
+        
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "application/javascript; charset=" + encoded.charset.name());
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", formatDate(encoded.lastModified));
+        headers.set("Cache-Control", "no-cache");
+        headers.set("Vary", "Accept-Encoding");
+        if (null != compression) { headers.set("Content-Encoding", compression.getContentEncoding()); }
+        
+        if (isNotModified(exchange.getRequestHeaders(), etag, encoded)) {
+            exchange.sendResponseHeaders(304, -1);
+        } else if ("HEAD".equals(method)) {
+            headers.set("Content-Length", Integer.toString(bytes.length));
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(bytes);
+            body.close();
+        }
+    }
+    
+    /**
+     * Picks the variant to send by the Accept-Encoding
+     * header of the request, preferring gzip.
+     * 
+     * @return the compression, or null to send the plain bytes
+     */
+    private static Compression getAcceptedCompression(Headers request, Encoded encoded) {
+        String acceptEncoding = request.getFirst("Accept-Encoding");
+        if ((null == acceptEncoding) || encoded.variants.isEmpty()) { return null; }
+        
+        Compression accepted = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.trim().split("\\s*;\\s*");
+            if ((params.length > 1) && params[1].matches("q=0(\\.0*)?")) { continue; }
+            
+            for (Compression compression : encoded.variants.keySet()) {
+                if (compression.getContentEncoding().equalsIgnoreCase(params[0]) 
+                        && ((null == accepted) || (compression.ordinal() < accepted.ordinal()))) {
+                    accepted = compression;
+                }
+            }
+        }
+        return accepted;
+    }
+    
+    /**
+     * Determines whether the client has the bytes
+     * already, by the ETags it has got or (if it
+     * sends none) by the time it got them.
+     */
+    private static boolean isNotModified(Headers request, String etag, Encoded encoded) {
+        String ifNoneMatch = request.getFirst("If-None-Match");
+        if (null != ifNoneMatch) {
+            for (String match : ifNoneMatch.split(",")) {
+                match = match.trim();
+                if (match.equals("*") || match.equals(etag) || match.equals("W/" + etag)) { return true; }
+            }
+            return false;
+        }
+        
+        String ifModifiedSince = request.getFirst("If-Modified-Since");
+        if (null != ifModifiedSince) {
+            try {
+                // HTTP dates are in seconds
+                return ((encoded.lastModified / 1000) <= (parseDate(ifModifiedSince).getTime() / 1000));
+            } catch (ParseException ex) {
+                return false;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+    
+    private static Date parseDate(String date) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.parse(date);
+    }
+    
+    private static String digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) { sb.append(String.format("%02x", b)); }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * The concatenation of a Secretary, which 
+     * is encoded again only when its sources 
+     * have changed.
+     */
+    private static class Bundle {
+        private BundleServer server;
+        private Secretary secretary;
+        private SourceWatcher watcher;
+        private Encoded encoded;
+        
+        public Bundle(BundleServer server, Secretary secretary, SourceWatcher watcher) {
+            this.server = server;
+            this.secretary = secretary;
+            this.watcher = watcher;
+        }
+        
+        public synchronized Encoded getEncoded() throws IOException {
+            if (watcher.rebuildIfChanged() || (null == encoded)) {
+                Concatenation concatenation = secretary.getConcatenation();
+                
+                // the variants are compressed from the plain bytes while they are encoded
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Map<Compression, ByteArrayOutputStream> compressed = new EnumMap<Compression, ByteArrayOutputStream>(Compression.class);
+                if (server.isCompressed()) {
+                    for (Compression compression : Compression.values()) {
+                        compressed.put(compression, new ByteArrayOutputStream());
+                    }
+                }
+                concatenation.writeTo(out, compressed, server.getCompressionLevel());
+                
+                byte[] bytes = out.toByteArray();
+                Map<Compression, byte[]> variants = new EnumMap<Compression, byte[]>(Compression.class);
+                for (Map.Entry<Compression, ByteArrayOutputStream> variant : compressed.entrySet()) {
+                    variants.put(variant.getKey(), variant.getValue().toByteArray());
+                }
+                
+                // files of directives only are not in the mtime of the concatenation
+                Long sourceLastModified = secretary.getSourceLastModified();
+                long lastModified = Math.max(concatenation.getMTime(), ((null != sourceLastModified) ? sourceLastModified : 0));
+                
+                encoded = new Encoded(bytes, variants, digest(bytes), lastModified, concatenation.getCharset());
+            }
+            return encoded;
+        }
+    }
+    
+    /**
+     * The bytes of a concatenation, and of its
+     * compressed variants, as they are served.
+     */
+    private static class Encoded {
+        private byte[] bytes;
+        private Map<Compression, byte[]> variants;
+        private String hash;
+        private long lastModified;
+        private Charset charset;
+        
+        public Encoded(byte[] bytes, Map<Compression, byte[]> variants, String hash, long lastModified, Charset charset) {
+            this.bytes = bytes;
+            this.variants = variants;
+            this.hash = hash;
+            this.lastModified = lastModified;
+            this.charset = charset;
+        }
+        
+        /**
+         * @param compression of the variant, or null
+         * @return the ETag of the variant (which differs 
+         *         from the ones of the other variants)
+         */
+        public String getETag(Compression compression) {
+            return "\"" + hash + ((null == compression) ? "" : ("-" + compression.getContentEncoding())) + "\"";
+        }
+    }
+}
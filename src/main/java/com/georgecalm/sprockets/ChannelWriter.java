@@ -0,0 +1,166 @@
+package com.georgecalm.sprockets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ *  The ChannelWriter encodes characters straight
+ *  into a WritableByteChannel through a buffer.
+ * 
+ *  Encoders and buffers are pooled per thread,
+ *  so that writing many concatenations does not
+ *  allocate a new set every time.
+ */
+public class ChannelWriter extends Writer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+    private static final ThreadLocal<CharsetEncoder> ENCODERS = new ThreadLocal<CharsetEncoder>();
+    
+    private WritableByteChannel channel;
+    private CharsetEncoder encoder;
+    private ByteBuffer buffer;
+    private char highSurrogate;
+    
+    public ChannelWriter(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.encoder = acquireEncoder(charset);
+        this.buffer = acquireBuffer();
+    }
+    
+    public Charset getCharset() { return encoder.charset(); }
+    
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(cbuf, off, len));
+    }
+    
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        encode(CharBuffer.wrap(str, off, (off + len)));
+    }
+    
+    @Override
+    public void write(int c) throws IOException {
+        encode(CharBuffer.wrap(new char[] { (char) c }));
+    }
+    
+    /**
+     * Writes all buffered bytes
+     * to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+    
+    /**
+     * Flushes the encoder and the buffer and
+     * returns them to the pool. The channel is
+     * left open.
+     * 
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (null == encoder) { return; }
+        
+        try {
+            CharBuffer rest = (highSurrogate != 0) ? CharBuffer.wrap(new char[] { highSurrogate }) : CharBuffer.allocate(0);
+            encode(rest, true);
+            while (encoder.flush(buffer).isOverflow()) { drain(); }
+            drain();
+        } finally {
+            ENCODERS.set(encoder);
+            BUFFERS.set(buffer);
+            encoder = null;
+            buffer = null;
+        }
+    }
+    
+    /**
+     * Finishes writing and
+     * closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private void encode(CharBuffer in) throws IOException {
+        ensureOpen();
+        
+        if ((highSurrogate != 0) && in.hasRemaining()) {
+            CharBuffer joined = CharBuffer.allocate(in.remaining() + 1);
+            joined.put(highSurrogate).put(in).flip();
+            highSurrogate = 0;
+            in = joined;
+        }
+        
+        encode(in, false);
+        
+        // an unpaired high surrogate at the end of the
+        // input is kept until the next write
+        if (in.hasRemaining()) { highSurrogate = in.get(); }
+    }
+    
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+    
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (null == encoder) { throw new IOException("writer has been finished"); }
+    }
+    
+    private static CharsetEncoder acquireEncoder(Charset charset) {
+        CharsetEncoder encoder = ENCODERS.get();
+        ENCODERS.remove();
+        
+        if ((null == encoder) || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        
+        return encoder.reset();
+    }
+    
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = BUFFERS.get();
+        BUFFERS.remove();
+        
+        if (null == buffer) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        
+        buffer.clear();
+        return buffer;
+    }
+}
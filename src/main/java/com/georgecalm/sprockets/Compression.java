@@ -0,0 +1,63 @@
+package com.georgecalm.sprockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *  The compressed variants of a concatenation,
+ *  as they are saved next to it and sent with
+ *  the Content-Encoding of the same name.
+ */
+public enum Compression {
+    GZIP("gzip", ".gz"), 
+    DEFLATE("deflate", ".deflate");
+    
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    private String contentEncoding;
+    private String suffix;
+    
+    private Compression(String contentEncoding, String suffix) {
+        this.contentEncoding = contentEncoding;
+        this.suffix = suffix;
+    }
+    
+    public String getContentEncoding() { return contentEncoding; }
+    
+    /**
+     * @return the suffix of the files of this variant (e.g. ".gz")
+     */
+    public String getSuffix() { return suffix; }
+    
+    /**
+     * Wraps a stream in one which compresses
+     * everything written to it. Closing it 
+     * closes the wrapped stream.
+     * 
+     * @param out
+     * @param level 0 to 9, or DEFAULT_LEVEL
+     * @return
+     * @throws IOException
+     */
+    public OutputStream compress(OutputStream out, final int level) throws IOException {
+        if (GZIP == this) {
+            return new GZIPOutputStream(out) {
+                { def.setLevel(level); }
+            };
+        }
+        
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+}
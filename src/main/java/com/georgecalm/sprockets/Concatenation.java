@@ -1,50 +1,389 @@
 package com.georgecalm.sprockets;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ *  The Concatenation is the product of the
+ *  Preprocessor. Its lines are kept as ranges
+ *  of lines of the LineTables of their SourceFiles,
+ *  since they mostly come in long runs of 
+ *  consecutive lines of the same file.
+ */
 public class Concatenation {
-    private List<SourceLine> sourceLines;
+    private LineTable[] tables;
+    private int[] starts, ends;
+    private int rangeCount, size;
     private Map<SourceFile, Long> sourceFileMTimes;
+    private List<OutputFilter> filters;
+    private Charset charset;
     
-    public Concatenation() {
-        sourceLines = new LinkedList<SourceLine>();
+    private static final int FLUSH_THRESHOLD = 8192;
+    
+    public Concatenation() { this(Charset.forName("UTF-8")); }
+    
+    /**
+     * Creates a new Concatenation which is
+     * written out in the given charset.
+     * 
+     * @param charset
+     */
+    public Concatenation(Charset charset) {
+        tables = new LineTable[16];
+        starts = new int[16];
+        ends = new int[16];
         sourceFileMTimes = new HashMap<SourceFile, Long>();
+        filters = new ArrayList<OutputFilter>();
+        this.charset = charset;
+    }
+    
+    public Charset getCharset() { return charset; }
+    public List<OutputFilter> getFilters() { return Collections.unmodifiableList(filters); }
+    
+    /**
+     * Adds a filter the lines pass through when
+     * the concatenation is written out, after the
+     * filters which were added before it.
+     * 
+     * @param filter
+     */
+    public void addFilter(OutputFilter filter) {
+        filters.add(filter);
     }
     
-    public List<SourceLine> getSourceLines() { return sourceLines; }
+    /**
+     * @return a view of the lines of this concatenation
+     */
+    public List<SourceLine> getSourceLines() { 
+        return new SourceLineList();
+    }
     
     public void record(SourceLine sourceLine) {
-        sourceLines.add(sourceLine);
-        recordMTimeFor(sourceLine.getSourceFile());
+        record(sourceLine.getTable(), sourceLine.getIndex(), (sourceLine.getIndex() + 1));
+    }
+    
+    /**
+     * Records a range of consecutive 
+     * lines of a LineTable.
+     * 
+     * @param table
+     * @param start index of the first line
+     * @param end index after the last line
+     */
+    public void record(LineTable table, int start, int end) {
+        if (start >= end) { return; }
+        size += (end - start);
+        
+        if ((rangeCount > 0) && (tables[rangeCount - 1] == table) && (ends[rangeCount - 1] == start)) {
+            ends[rangeCount - 1] = end;
+            return;
+        }
+        
+        if (rangeCount == tables.length) {
+            tables = Arrays.copyOf(tables, (rangeCount * 2));
+            starts = Arrays.copyOf(starts, (rangeCount * 2));
+            ends = Arrays.copyOf(ends, (rangeCount * 2));
+        }
+        
+        tables[rangeCount] = table;
+        starts[rangeCount] = start;
+        ends[rangeCount] = end;
+        rangeCount++;
+        recordMTimeFor(table.getSourceFile());
     }
     
     public String toString() {
         StringBuilder sb = new StringBuilder();
+        FilterChain chain = new FilterChain();
         
-        for (SourceLine line : sourceLines) {
-            sb.append(line);
+        for (SourceLine line : getSourceLines()) {
+            chain.filter(line.toString(), sb);
         }
+        chain.finish(sb);
         
         return sb.toString();
     }
     
+    /**
+     * Writes the concatenation to the given
+     * Writer one SourceLine at a time, so that
+     * the whole of it never has to be in memory.
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void writeTo(Writer writer) throws IOException {
+        if (!filters.isEmpty()) {
+            writeFiltered(writer);
+            return;
+        }
+        
+        for (SourceLine line : getSourceLines()) {
+            writer.write(line.toString());
+        }
+    }
+    
+    /**
+     * Writes the concatenation, encoded in its
+     * charset, to the given channel. The channel
+     * is left open.
+     * 
+     * @param channel
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ChannelWriter writer = new ChannelWriter(channel, charset);
+        if (!filters.isEmpty()) {
+            // the filtered lines can't be copied straight from their files
+            try {
+                writeFiltered(writer);
+            } finally {
+                writer.finish();
+            }
+            return;
+        }
+        
+        Map<LineTable, FileChannel> sources = new HashMap<LineTable, FileChannel>();
+        
+        try {
+            LineTable runTable = null;
+            long runStart = 0, runEnd = 0;
+            
+            for (int r = 0; r < rangeCount; r++) {
+                LineTable table = tables[r];
+                
+                for (int i = starts[r]; i < ends[r]; i++) {
+                    if (isPassedThrough(table, i, sources)) {
+                        if ((table == runTable) && (table.getByteOffset(i) == runEnd)) {
+                            runEnd += table.getByteLength(i);
+                            continue;
+                        }
+                        
+                        transfer(writer, channel, sources.get(runTable), runStart, runEnd);
+                        runTable = table;
+                        runStart = table.getByteOffset(i);
+                        runEnd = runStart + table.getByteLength(i);
+                    } else {
+                        transfer(writer, channel, sources.get(runTable), runStart, runEnd);
+                        runTable = null;
+                        runStart = runEnd = 0;
+                        writer.write(table.get(i).toString());
+                    }
+                }
+            }
+            
+            transfer(writer, channel, sources.get(runTable), runStart, runEnd);
+        } finally {
+            writer.finish();
+            for (FileChannel source : sources.values()) {
+                if (null != source) { source.close(); }
+            }
+        }
+    }
+    
+    /**
+     * @return the concatenation, encoded in its charset
+     * @throws IOException
+     */
+    public byte[] getBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+    
+    /**
+     * @param compression
+     * @param level of the compression (see Compression.compress())
+     * @return the concatenation, encoded in its charset and compressed
+     * @throws IOException
+     */
+    public byte[] getBytes(Compression compression, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = compression.compress(bytes, level);
+        try {
+            writeTo(Channels.newChannel(out));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+    
     public Long getMTime() {
         return (sourceFileMTimes.size() == 0) ? 0 : Collections.max(sourceFileMTimes.values());
     }
     
+    /**
+     * Saves the concatenation to a file. It is
+     * written to a temporary file next to it first,
+     * which then replaces the file, so that readers
+     * never see a partially written concatenation.
+     * 
+     * @param fileName
+     * @throws IOException
+     */
     public void saveTo(String fileName) throws IOException {
-        File file = new File(fileName);
-        file.setLastModified(getMTime());
-        FileWriter fw = new FileWriter(file);
-        fw.write(this.toString());
-        fw.close();
+        saveTo(fileName, EnumSet.noneOf(Compression.class), 0);
+    }
+    
+    /**
+     * Saves the concatenation to a file, and the given
+     * compressed variants of it next to the file (e.g.
+     * "application.js.gz"). The concatenation is rendered
+     * once, and the variants are compressed from its bytes
+     * in parallel with the writing of the file.
+     * 
+     * @param fileName
+     * @param compressions the variants to save
+     * @param level of the compression (see Compression.compress())
+     * @throws IOException
+     */
+    public void saveTo(String fileName, Set<Compression> compressions, int level) throws IOException {
+        File file = new File(fileName).getAbsoluteFile();
+        Map<File, File> temps = new LinkedHashMap<File, File>();
+        
+        try {
+            temps.put(file, File.createTempFile(file.getName(), ".tmp", file.getParentFile()));
+            Map<Compression, File> variantTemps = new EnumMap<Compression, File>(Compression.class);
+            for (Compression compression : compressions) {
+                File variant = new File(file.getPath() + compression.getSuffix());
+                variantTemps.put(compression, File.createTempFile(variant.getName(), ".tmp", file.getParentFile()));
+                temps.put(variant, variantTemps.get(compression));
+            }
+            
+            FileOutputStream out = new FileOutputStream(temps.get(file));
+            try {
+                if (variantTemps.isEmpty()) {
+                    writeTo(out.getChannel());
+                } else {
+                    writeTo(out, openAll(variantTemps), level);
+                }
+            } finally {
+                out.close();
+            }
+            
+            long mtime = getMTime();
+            for (Map.Entry<File, File> temp : temps.entrySet()) {
+                if (mtime > 0) { temp.getValue().setLastModified(mtime); }
+                moveAtomically(temp.getValue(), temp.getKey());
+            }
+        } finally {
+            for (File temp : temps.values()) { temp.delete(); }
+        }
+    }
+    
+    /**
+     * Writes the concatenation, encoded in its charset,
+     * to the given stream, and compressed to a stream per
+     * variant. It is rendered only once: the rendered bytes
+     * are handed to a task per variant, which compresses
+     * them in parallel with the writing, so that the
+     * variants hold the very bytes of the plain output.
+     * The given stream is left open, the ones of the
+     * variants are closed.
+     * 
+     * @param out
+     * @param variants the streams to compress each variant to
+     * @param level of the compression (see Compression.compress())
+     * @throws IOException
+     */
+    void writeTo(final OutputStream out, Map<Compression, ? extends OutputStream> variants, int level) throws IOException {
+        final List<VariantPipe> pipes = new ArrayList<VariantPipe>();
+        for (Map.Entry<Compression, ? extends OutputStream> variant : variants.entrySet()) {
+            VariantPipe pipe = new VariantPipe(variant.getKey(), variant.getValue(), level);
+            pipe.task = Workers.getPool().submit(pipe);
+            pipes.add(pipe);
+        }
+        
+        OutputStream tee = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (pipes.isEmpty()) { return; }
+                
+                byte[] chunk = Arrays.copyOfRange(b, off, (off + len));
+                for (VariantPipe pipe : pipes) { pipe.chunks.add(chunk); }
+            }
+        };
+        
+        try {
+            writeTo(Channels.newChannel(tee));
+        } finally {
+            for (VariantPipe pipe : pipes) { pipe.chunks.add(VariantPipe.END); }
+        }
+        for (VariantPipe pipe : pipes) {
+            Workers.join(pipe.task);
+        }
+    }
+    
+    /**
+     * Opens the given files, closing the
+     * ones already opened if one can't be.
+     */
+    private static Map<Compression, OutputStream> openAll(Map<Compression, File> files) throws IOException {
+        Map<Compression, OutputStream> streams = new EnumMap<Compression, OutputStream>(Compression.class);
+        try {
+            for (Map.Entry<Compression, File> file : files.entrySet()) {
+                streams.put(file.getKey(), new FileOutputStream(file.getValue()));
+            }
+        } catch (IOException ex) {
+            for (OutputStream stream : streams.values()) { stream.close(); }
+            throw ex;
+        }
+        return streams;
+    }
+    
+    /**
+     * Writes the lines through the filters, flushing
+     * their output every now and then, so that it
+     * never has to be in memory all at once.
+     */
+    private void writeFiltered(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        FilterChain chain = new FilterChain();
+        
+        for (SourceLine line : getSourceLines()) {
+            chain.filter(line.toString(), sb);
+            if (sb.length() >= FLUSH_THRESHOLD) {
+                writer.append(sb);
+                sb.setLength(0);
+            }
+        }
+        chain.finish(sb);
+        writer.append(sb);
     }
     
     private void recordMTimeFor(SourceFile sourceFile) {
@@ -52,4 +391,180 @@ public class Concatenation {
             sourceFileMTimes.put(sourceFile, sourceFile.getMtime());
         }
     }
+    
+    /**
+     * Determines whether the bytes of the given 
+     * line can be copied straight from its SourceFile.
+     * The files are opened once per LineTable and only
+     * if they have not been modified since the lines of
+     * that very table were read (the SourceFile may have
+     * been read again since this concatenation was built).
+     * 
+     * @param table
+     * @param index of the line in the table
+     * @param sources open files (null for the ones which can't be used)
+     * @return
+     * @throws IOException
+     */
+    private boolean isPassedThrough(LineTable table, int index, Map<LineTable, FileChannel> sources) throws IOException {
+        if (!table.isVerbatim(index, SourceLine.LINE_SEPARATOR)) { return false; }
+        
+        if (!sources.containsKey(table)) {
+            SourceFile file = table.getSourceFile();
+            boolean isUsable = charset.equals(file.getCharset()) && table.isUnchangedOnDisk();
+            sources.put(table, isUsable ? new FileInputStream(file.getPathname().getAbsoluteLocation()).getChannel() : null);
+        }
+        
+        return (null != sources.get(table));
+    }
+    
+    /**
+     * Copies a range of bytes of a source to the
+     * target channel, after the characters buffered
+     * by the writer.
+     */
+    private static void transfer(ChannelWriter writer, WritableByteChannel target, FileChannel source, 
+            long start, long end) throws IOException {
+        if ((null == source) || (start >= end)) { return; }
+        
+        writer.flush();
+        while (start < end) {
+            long transferred = source.transferTo(start, (end - start), target);
+            if (transferred <= 0) { throw new IOException("unexpected end of " + source); }
+            start += transferred;
+        }
+    }
+    
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Compresses the chunks of rendered bytes which are
+     * put into its queue in a task of its own, until it
+     * takes the END chunk, and then closes its stream.
+     */
+    private static class VariantPipe implements Callable<Void> {
+        public static final byte[] END = new byte[0];
+        private BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+        private Compression compression;
+        private OutputStream out;
+        private int level;
+        private ForkJoinTask<Void> task;
+        
+        public VariantPipe(Compression compression, OutputStream out, int level) {
+            this.compression = compression;
+            this.out = out;
+            this.level = level;
+        }
+        
+        public Void call() throws IOException, InterruptedException {
+            try {
+                OutputStream compressed = compression.compress(out, level);
+                try {
+                    for (byte[] chunk; END != (chunk = chunks.take()); ) {
+                        compressed.write(chunk);
+                    }
+                } finally {
+                    compressed.close();
+                }
+            } finally {
+                out.close();
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * The passes of all filters over one output,
+     * each of them filtering what the one before
+     * it has left.
+     */
+    private class FilterChain {
+        private OutputFilter.Pass[] passes;
+        private StringBuilder[] buffers;
+        
+        public FilterChain() {
+            passes = new OutputFilter.Pass[filters.size()];
+            buffers = new StringBuilder[passes.length];
+            for (int i = 0; i < passes.length; i++) {
+                passes[i] = filters.get(i).begin();
+                buffers[i] = new StringBuilder();
+            }
+        }
+        
+        public void filter(CharSequence line, StringBuilder out) {
+            filter(0, line, out);
+        }
+        
+        public void finish(StringBuilder out) {
+            for (int i = 0; i < passes.length; i++) {
+                StringBuilder buffer = buffers[i];
+                buffer.setLength(0);
+                passes[i].finish(buffer);
+                filter((i + 1), buffer, out);
+            }
+        }
+        
+        private void filter(int first, CharSequence text, StringBuilder out) {
+            for (int i = first; i < passes.length; i++) {
+                StringBuilder buffer = buffers[i];
+                buffer.setLength(0);
+                passes[i].filter(text, buffer);
+                text = buffer;
+            }
+            out.append(text);
+        }
+    }
+    
+    /**
+     * List of the SourceLines of all ranges.
+     */
+    private class SourceLineList extends AbstractList<SourceLine> {
+        @Override
+        public SourceLine get(int index) {
+            if ((index < 0) || (index >= size)) { throw new IndexOutOfBoundsException("index: " + index); }
+            
+            for (int r = 0; r < rangeCount; r++) {
+                int length = ends[r] - starts[r];
+                if (index < length) { return tables[r].get(starts[r] + index); }
+                index -= length;
+            }
+            
+            throw new IllegalStateException();
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public Iterator<SourceLine> iterator() {
+            return new Iterator<SourceLine>() {
+                private int range = 0, index = (rangeCount > 0) ? starts[0] : 0;
+                
+                public boolean hasNext() {
+                    while ((range < rangeCount) && (index >= ends[range])) {
+                        range++;
+                        index = (range < rangeCount) ? starts[range] : 0;
+                    }
+                    return (range < rangeCount);
+                }
+                
+                public SourceLine next() {
+                    if (!hasNext()) { throw new NoSuchElementException(); }
+                    return tables[range].get(index++);
+                }
+                
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package com.georgecalm.sprockets;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ *  The ConstantTemplate is a line which
+ *  has been split once into literal text and
+ *  references to constants (e.g. "<%= VERSION %>"),
+ *  so that it can be rendered in a single pass
+ *  against any map of constants.
+ */
+public final class ConstantTemplate {
+    private static final String OPEN_TAG = "<%=";
+    private static final String CLOSE_TAG = "%>";
+    
+    private final String text;
+    private final int[] tagStarts, tagEnds;
+    private final String[] names;
+    
+    private ConstantTemplate(String text, int[] tagStarts, int[] tagEnds, String[] names) {
+        this.text = text;
+        this.tagStarts = tagStarts;
+        this.tagEnds = tagEnds;
+        this.names = names;
+    }
+    
+    /**
+     * Determines whether the text
+     * references any constants at all.
+     * 
+     * @param text
+     * @return
+     */
+    public static boolean hasConstants(String text) {
+        return (findTag(text, 0) >= 0);
+    }
+    
+    /**
+     * Splits the text into literals and
+     * constant references. A reference is the
+     * shortest "<%= ... %>" which does not span
+     * a line terminator.
+     * 
+     * @param text
+     * @return template, or null if the text
+     *         does not reference any constants
+     */
+    public static ConstantTemplate compile(String text) {
+        int count = 0;
+        int[] tagStarts = new int[2], tagEnds = new int[2];
+        String[] names = new String[2];
+        
+        for (int i = findTag(text, 0); i >= 0; i = findTag(text, tagEnds[count - 1])) {
+            if (count == names.length) {
+                tagStarts = Arrays.copyOf(tagStarts, (count * 2));
+                tagEnds = Arrays.copyOf(tagEnds, (count * 2));
+                names = Arrays.copyOf(names, (count * 2));
+            }
+            
+            int nameStart = i + OPEN_TAG.length();
+            int nameEnd = text.indexOf(CLOSE_TAG, nameStart);
+            
+            tagStarts[count] = i;
+            tagEnds[count] = nameEnd + CLOSE_TAG.length();
+            names[count] = text.substring(nameStart, nameEnd);
+            count++;
+        }
+        
+        if (count == 0) { return null; }
+        return new ConstantTemplate(text, Arrays.copyOf(tagStarts, count), 
+                Arrays.copyOf(tagEnds, count), Arrays.copyOf(names, count));
+    }
+    
+    /**
+     * Renders the template to the
+     * given StringBuilder.
+     * 
+     * @param out to render to
+     * @param constants to be interpolated
+     * @param line which is being rendered (for error reporting)
+     * @throws UndefinedConstantException
+     */
+    public void renderTo(StringBuilder out, Map<String, String> constants, SourceLine line)
+            throws UndefinedConstantException {
+        int from = 0;
+        
+        for (int k = 0; k < names.length; k++) {
+            String value = constants.get(names[k].trim());
+            if (null == value) {
+                throw new UndefinedConstantException(
+                        String.format("couldn't find constant %s in %s", names[k], line.inspect()));
+            }
+            
+            out.append(text, from, tagStarts[k]).append(value);
+            from = tagEnds[k];
+        }
+        
+        out.append(text, from, text.length());
+    }
+    
+    /**
+     * Finds the next opening tag which has
+     * a matching closing tag on the same line.
+     * 
+     * @return index of the tag, or -1
+     */
+    private static int findTag(String text, int from) {
+        for (int i = text.indexOf(OPEN_TAG, from); i >= 0; i = text.indexOf(OPEN_TAG, i + 1)) {
+            int close = text.indexOf(CLOSE_TAG, i + OPEN_TAG.length());
+            if ((close >= 0) && !containsLineTerminator(text, i + OPEN_TAG.length(), close)) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private static boolean containsLineTerminator(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (SourceLineLexer.isLineTerminator(text.charAt(i))) { return true; }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,326 @@
+package com.georgecalm.sprockets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *  The DependencyGraph holds the SourceFiles
+ *  which were required by a Preprocessor (its
+ *  nodes) and the require and provide directives
+ *  between them (its edges), along with the
+ *  SourceLines the directives were found on.
+ * 
+ *  Nodes and edges are kept in the order they
+ *  were added, which is the order the Preprocessor
+ *  followed them in.
+ */
+public class DependencyGraph {
+    public enum EdgeKind { REQUIRE, PROVIDE }
+    
+    private Map<Pathname, SourceFile> nodes;
+    private Map<Pathname, List<Edge>> edgesFrom;
+    private Map<Pathname, List<Edge>> edgesTo;
+    
+    public DependencyGraph() {
+        this.nodes = new LinkedHashMap<Pathname, SourceFile>();
+        this.edgesFrom = new HashMap<Pathname, List<Edge>>();
+        this.edgesTo = new HashMap<Pathname, List<Edge>>();
+    }
+    
+    /**
+     * Adds a SourceFile to the graph,
+     * unless it is there already.
+     * 
+     * @param sourceFile
+     * @return true if the SourceFile was added
+     */
+    public boolean addNode(SourceFile sourceFile) {
+        if (nodes.containsKey(sourceFile.getPathname())) { return false; }
+        nodes.put(sourceFile.getPathname(), sourceFile);
+        return true;
+    }
+    
+    /**
+     * Adds a directive of the SourceFile of
+     * the given line to the graph.
+     * 
+     * @param kind of the directive
+     * @param origin the line of the directive
+     * @param to the pathname the directive points at
+     * @return the edge
+     */
+    public Edge addEdge(EdgeKind kind, SourceLine origin, Pathname to) {
+        Edge edge = new Edge(kind, origin, to);
+        addNode(edge.getFrom());
+        getEdges(edgesFrom, edge.getFrom().getPathname()).add(edge);
+        getEdges(edgesTo, to).add(edge);
+        return edge;
+    }
+    
+    /**
+     * Removes the directives of the given SourceFile
+     * (e.g. before adding them again once the file
+     * has been read again).
+     * 
+     * @param sourceFile
+     */
+    public void removeEdgesFrom(SourceFile sourceFile) {
+        List<Edge> edges = edgesFrom.remove(sourceFile.getPathname());
+        if (null == edges) { return; }
+        
+        for (Edge edge : edges) {
+            edgesTo.get(edge.getTo()).remove(edge);
+        }
+    }
+    
+    public boolean contains(SourceFile sourceFile) { return nodes.containsKey(sourceFile.getPathname()); }
+    public SourceFile getNode(Pathname pathname) { return nodes.get(pathname); }
+    
+    /**
+     * @return all SourceFiles, in the order they were added
+     */
+    public List<SourceFile> getNodes() {
+        return new ArrayList<SourceFile>(nodes.values());
+    }
+    
+    /**
+     * @param sourceFile
+     * @return the directives of the SourceFile, in the order of its lines
+     */
+    public List<Edge> getEdgesFrom(SourceFile sourceFile) {
+        List<Edge> edges = edgesFrom.get(sourceFile.getPathname());
+        return (null == edges) ? Collections.<Edge>emptyList() : Collections.unmodifiableList(edges);
+    }
+    
+    /**
+     * @param pathname of a SourceFile or an asset
+     * @return the directives which point at the pathname
+     */
+    public List<Edge> getEdgesTo(Pathname pathname) {
+        List<Edge> edges = edgesTo.get(pathname);
+        return (null == edges) ? Collections.<Edge>emptyList() : Collections.unmodifiableList(edges);
+    }
+    
+    /**
+     * Retrieves the SourceFiles which
+     * require the given SourceFile directly.
+     * 
+     * @param sourceFile
+     * @return
+     */
+    public Set<SourceFile> getDependents(SourceFile sourceFile) {
+        return getDependents(sourceFile.getPathname());
+    }
+    
+    /**
+     * Retrieves the SourceFiles which require
+     * or provide the given pathname directly.
+     * 
+     * @param pathname of a SourceFile or an asset
+     * @return
+     */
+    public Set<SourceFile> getDependents(Pathname pathname) {
+        Set<SourceFile> dependents = new LinkedHashSet<SourceFile>();
+        for (Edge edge : getEdgesTo(pathname)) {
+            dependents.add(edge.getFrom());
+        }
+        return dependents;
+    }
+    
+    /**
+     * Retrieves the SourceFiles which depend on the
+     * given pathname, directly or through other
+     * SourceFiles, i.e. the SourceFiles which are
+     * affected by a change of it.
+     * 
+     * @param pathname of a SourceFile or an asset
+     * @return
+     */
+    public Set<SourceFile> getAllDependents(Pathname pathname) {
+        Set<SourceFile> dependents = new LinkedHashSet<SourceFile>();
+        LinkedList<Pathname> queue = new LinkedList<Pathname>();
+        queue.add(pathname);
+        
+        while (!queue.isEmpty()) {
+            for (SourceFile dependent : getDependents(queue.removeFirst())) {
+                if (dependents.add(dependent)) { queue.add(dependent.getPathname()); }
+            }
+        }
+        
+        return dependents;
+    }
+    
+    /**
+     * Retrieves the SourceFiles which are required
+     * by the given SourceFile directly.
+     * 
+     * @param sourceFile
+     * @return
+     */
+    public List<SourceFile> getDependencies(SourceFile sourceFile) {
+        List<SourceFile> dependencies = new ArrayList<SourceFile>();
+        for (Edge edge : getEdgesFrom(sourceFile)) {
+            SourceFile dependency = getRequiredNode(edge);
+            if ((null != dependency) && !dependencies.contains(dependency)) { dependencies.add(dependency); }
+        }
+        return dependencies;
+    }
+    
+    /**
+     * Finds the cycles of requires in the graph (with
+     * Tarjan's algorithm). Every cycle is a list of the
+     * SourceFiles which require each other, a SourceFile
+     * that requires itself being a cycle of its own.
+     * 
+     * The Preprocessor includes every SourceFile only
+     * once, so a cycle is cut where it is closed.
+     * 
+     * @return cycles, empty if there are none
+     */
+    public List<List<SourceFile>> getCycles() {
+        return new CycleFinder().find();
+    }
+    
+    public boolean hasCycles() {
+        return !getCycles().isEmpty();
+    }
+    
+    /**
+     * Orders the SourceFiles so that every SourceFile
+     * comes after the ones it requires, following the
+     * requires in the order of their lines.
+     * 
+     * Requires which close a cycle are ignored, just as
+     * the Preprocessor ignores them.
+     * 
+     * @return
+     */
+    public List<SourceFile> getTopologicalOrder() {
+        Set<SourceFile> visited = new LinkedHashSet<SourceFile>();
+        List<SourceFile> order = new ArrayList<SourceFile>(nodes.size());
+        
+        for (SourceFile node : nodes.values()) {
+            visit(node, visited, order);
+        }
+        
+        return order;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (SourceFile node : nodes.values()) {
+            sb.append(node).append(SourceLine.LINE_SEPARATOR);
+            for (Edge edge : getEdgesFrom(node)) {
+                sb.append("  ").append(edge).append(SourceLine.LINE_SEPARATOR);
+            }
+        }
+        return sb.toString();
+    }
+    
+    private void visit(SourceFile node, Set<SourceFile> visited, List<SourceFile> order) {
+        if (!visited.add(node)) { return; }
+        
+        for (Edge edge : getEdgesFrom(node)) {
+            SourceFile dependency = getRequiredNode(edge);
+            if (null != dependency) { visit(dependency, visited, order); }
+        }
+        
+        order.add(node);
+    }
+    
+    private SourceFile getRequiredNode(Edge edge) {
+        return (edge.getKind() == EdgeKind.REQUIRE) ? nodes.get(edge.getTo()) : null;
+    }
+    
+    private static List<Edge> getEdges(Map<Pathname, List<Edge>> edges, Pathname pathname) {
+        List<Edge> list = edges.get(pathname);
+        if (null == list) {
+            list = new ArrayList<Edge>();
+            edges.put(pathname, list);
+        }
+        return list;
+    }
+    
+    /**
+     * A require or a provide directive.
+     */
+    public static class Edge {
+        private EdgeKind kind;
+        private SourceLine origin;
+        private Pathname to;
+        
+        public Edge(EdgeKind kind, SourceLine origin, Pathname to) {
+            this.kind = kind;
+            this.origin = origin;
+            this.to = to;
+        }
+        
+        public EdgeKind getKind() { return kind; }
+        public SourceLine getOrigin() { return origin; }
+        public SourceFile getFrom() { return origin.getSourceFile(); }
+        public Pathname getTo() { return to; }
+        
+        @Override
+        public String toString() {
+            return String.format("%s %s (%s)", kind.toString().toLowerCase(), to, origin.inspect());
+        }
+    }
+    
+    /**
+     * Tarjan's strongly connected components,
+     * restricted to the require edges.
+     */
+    private class CycleFinder {
+        private Map<SourceFile, Integer> indexes = new HashMap<SourceFile, Integer>();
+        private Map<SourceFile, Integer> lowLinks = new HashMap<SourceFile, Integer>();
+        private LinkedList<SourceFile> stack = new LinkedList<SourceFile>();
+        private Set<SourceFile> onStack = new LinkedHashSet<SourceFile>();
+        private List<List<SourceFile>> cycles = new ArrayList<List<SourceFile>>();
+        
+        public List<List<SourceFile>> find() {
+            for (SourceFile node : nodes.values()) {
+                if (!indexes.containsKey(node)) { connect(node); }
+            }
+            return cycles;
+        }
+        
+        private void connect(SourceFile node) {
+            int index = indexes.size();
+            indexes.put(node, index);
+            lowLinks.put(node, index);
+            stack.push(node);
+            onStack.add(node);
+            
+            boolean requiresItself = false;
+            for (SourceFile dependency : getDependencies(node)) {
+                if (!indexes.containsKey(dependency)) {
+                    connect(dependency);
+                    lowLinks.put(node, Math.min(lowLinks.get(node), lowLinks.get(dependency)));
+                } else if (onStack.contains(dependency)) {
+                    lowLinks.put(node, Math.min(lowLinks.get(node), indexes.get(dependency)));
+                }
+                requiresItself |= dependency.equals(node);
+            }
+            
+            if (lowLinks.get(node) == index) {
+                List<SourceFile> component = new LinkedList<SourceFile>();
+                SourceFile member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(0, member);
+                } while (!member.equals(node));
+                
+                if ((component.size() > 1) || requiresItself) { cycles.add(component); }
+            }
+        }
+    }
+}
@@ -2,15 +2,19 @@ package com.georgecalm.sprockets;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.MatchResult;
 
 import org.apache.commons.io.FilenameUtils;
@@ -19,16 +23,35 @@ import org.slf4j.LoggerFactory;
 
 public class Environment {
     private static Logger logger = LoggerFactory.getLogger(Environment.class);
+    private static final int RESOLUTION_CACHE_SIZE = 4096;
+    private static final Pathname NOT_FOUND = new Pathname(null, File.separator);
     private Pathname root;
     private LinkedHashSet<Pathname> loadPath;
-    private Map<String, String> constants;
+    private Pathname[] searchPath;
+    private Map<String, Pathname> resolutions;
+    private volatile LoadPathIndex index;
+    private ConcurrentMap<String, Pathname> pathnames;
+    private ConcurrentMap<Pathname, SourceFile> sourceFiles;
+    private volatile Map<String, String> constants;
+    private Charset charset;
+    private ParseCache parseCache;
     
     public Environment(String root) { this(root, new LinkedList<String>()); }
     public Environment(String root, List<String> loadPath) {
-        this.root = new Pathname(this, root);
+        this.pathnames = new ConcurrentHashMap<String, Pathname>();
+        this.sourceFiles = new ConcurrentHashMap<Pathname, SourceFile>();
+        this.root = getPathname(root);
         this.loadPath = new LinkedHashSet<Pathname>();
         this.loadPath.add(this.root);
-        this.constants = new HashMap<String, String>();
+        this.resolutions = new LinkedHashMap<String, Pathname>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pathname> eldest) {
+                return (size() > RESOLUTION_CACHE_SIZE);
+            }
+        };
+        this.charset = Charset.forName("UTF-8");
         
         // TODO: check - (I really hope I'm doing this right...)
         LinkedList<String> revLoadPath = new LinkedList<String>(loadPath);
@@ -39,49 +62,190 @@ public class Environment {
     }
     
     public Pathname getRoot() { return root; }
-    public Set<Pathname> getLoadPath() { return loadPath; }
+    
+    /**
+     * @return the load path (which can only be changed with registerLoadLocation())
+     */
+    public Set<Pathname> getLoadPath() { return Collections.unmodifiableSet(loadPath); }
+    
+    /**
+     * The charset source files are
+     * read with (UTF-8 by default).
+     * 
+     * @return
+     */
+    public Charset getCharset() { return charset; }
+    public void setCharset(Charset charset) { this.charset = charset; }
+    
+    /**
+     * The cache the lines of source files
+     * are kept in between processes (null
+     * if they are not cached).
+     * 
+     * @return
+     */
+    public ParseCache getParseCache() { return parseCache; }
+    public void setParseCache(ParseCache parseCache) { this.parseCache = parseCache; }
     
     public Pathname getPathnameFrom(String location) {
-        return new Pathname(this, absoluteLocationFrom(location));
+        return getPathname(absoluteLocationFrom(location));
+    }
+    
+    /**
+     * Retrieves the one Pathname of this Environment
+     * for the given location, so that the location is
+     * only normalized once, and all SourceFiles of the
+     * same file are one and the same.
+     * 
+     * @param absoluteLocation (which need not be normalized)
+     * @return
+     */
+    public Pathname getPathname(String absoluteLocation) {
+        Pathname pathname = pathnames.get(absoluteLocation);
+        if (null != pathname) { return pathname; }
+        
+        pathname = new Pathname(this, absoluteLocation);
+        Pathname interned = pathnames.putIfAbsent(pathname.getAbsoluteLocation(), pathname);
+        pathname = (null != interned) ? interned : pathname;
+        
+        pathnames.putIfAbsent(absoluteLocation, pathname);
+        return pathname;
+    }
+    
+    /**
+     * Retrieves the one SourceFile of this
+     * Environment for the given Pathname, so 
+     * that its lines are only read once.
+     * 
+     * @param pathname
+     * @return
+     */
+    public SourceFile getSourceFile(Pathname pathname) {
+        SourceFile sourceFile = sourceFiles.get(pathname);
+        if (null != sourceFile) { return sourceFile; }
+        
+        sourceFile = new SourceFile(this, pathname);
+        SourceFile interned = sourceFiles.putIfAbsent(pathname, sourceFile);
+        return (null != interned) ? interned : sourceFile;
     }
     
     public String registerLoadLocation(String location) {
         Pathname pathname = getPathnameFrom(location);
-        loadPath.add(pathname);
+        synchronized (resolutions) {
+            loadPath.add(pathname);
+            searchPath = null;
+            resolutions.clear();
+        }
+        invalidateConstants(); // the location may have a constants.yml of its own
         return location;
     }
     
+    /**
+     * Determines whether the files in the load path
+     * are found through a LoadPathIndex.
+     * 
+     * @return
+     */
+    public boolean isIndexed() { return (null != index); }
+    
+    /**
+     * Turns the LoadPathIndex on or off. When it is
+     * on, all files beneath the load path are listed
+     * (once), and files are found with a single look-up.
+     * 
+     * @param isIndexed
+     */
+    public void setIndexed(boolean isIndexed) {
+        synchronized (resolutions) {
+            index = isIndexed ? new LoadPathIndex() : null;
+            resolutions.clear();
+        }
+    }
+    
+    /**
+     * Lists the files of the load path again, 
+     * if it is indexed, and forgets which locations
+     * were found where.
+     */
+    public void refreshIndex() {
+        synchronized (resolutions) {
+            if (null != index) { index.refresh(); }
+            searchPath = null;
+            resolutions.clear();
+        }
+    }
+    
+    /**
+     * Forgets which locations were found where
+     * in the load path (e.g. when files were added
+     * to or removed from its directories).
+     */
+    public void invalidateResolutions() {
+        synchronized (resolutions) {
+            searchPath = null;
+            resolutions.clear();
+        }
+    }
+    
     public Pathname find(String location) {
         Pathname found = null; 
         File locFile = new File(location);
         
-        if (locFile.exists() && locFile.isAbsolute()) {
+        if (locFile.isAbsolute() && locFile.exists()) {
             found = getPathnameFrom(location);
         } else {
-            List<Pathname> allFound = findAll(location);
-            found = (allFound.size() > 0) ? allFound.get(0) : found;
+            found = findInLoadPath(location);
         }
         
         return found;
     }
     
+    /**
+     * Forgets the constants, so that the constants.yml
+     * files are read again when they are used next.
+     */
+    public void invalidateConstants() {
+        constants = null;
+    }
+    
     public Map<String, String> getConstants() { return getConstants(false); }
+    
+    /**
+     * Reads the constants.yml files of the load path 
+     * on first use (or when asked to reload them). The
+     * constants are read into a new map, which is only
+     * published once it is complete and can't be changed,
+     * so that it can be used by several threads at once
+     * (e.g. while the watcher invalidates it).
+     * 
+     * @param reload
+     * @return the constants
+     */
     public Map<String, String> getConstants(boolean reload) {
-        if (!constants.isEmpty() && !reload) { return constants; }
+        Map<String, String> loaded = constants;
+        if ((null != loaded) && !reload) { return loaded; }
         
-        for (Pathname path : loadPath) {
-            constants = parseColonSeparatedPropertyFile(
-                    new File(path.getAbsoluteLocation(), "constants.yml"), constants);
+        List<Pathname> paths;
+        synchronized (resolutions) {
+            paths = new ArrayList<Pathname>(loadPath);
         }
         
-        return constants;
+        Map<String, String> map = new HashMap<String, String>();
+        for (Pathname path : paths) {
+            parseColonSeparatedPropertyFile(new File(path.getAbsoluteLocation(), "constants.yml"), map);
+        }
+        
+        loaded = Collections.unmodifiableMap(map);
+        constants = loaded;
+        return loaded;
     }
     
     @Override
     public String toString() {
+        Map<String, String> loaded = constants;
         return String.format("root: %s, load-path: %s, constants: %s", 
                 root.toString(), loadPath.toString(),
-                ((null != constants) ? constants.toString() : "[]"));
+                ((null != loaded) ? loaded.toString() : "[]"));
     }
     
     @Override
@@ -90,7 +254,7 @@ public class Environment {
         Environment env = (Environment) otherEnv;
         
         boolean isEquals = (root.equals(env.getRoot()) && loadPath.equals(env.getLoadPath()) 
-                && constants.equals(env.getConstants()));
+                && getConstants().equals(env.getConstants()));
         
         return isEquals;
     }
@@ -100,7 +264,7 @@ public class Environment {
         int result = 17;
         result = 31 * result + root.hashCode();
         result = 31 * result + loadPath.hashCode();
-        result = 31 * result + constants.hashCode();
+        result = 31 * result + getConstants().hashCode();
         return result;
     }
     
@@ -114,20 +278,61 @@ public class Environment {
         return fabs;
     }
     
-    private List<Pathname> findAll(String location) {
-        List<Pathname> list = new ArrayList<Pathname>();
-
-        for (Pathname pname : loadPath) {
-            Pathname floc = pname.find(location);
-            if (null != floc) { list.add(floc); }
+    /**
+     * Finds the location in the load path, looking in
+     * the path which was added last first, and stopping
+     * at the first match. Both found and not found
+     * locations are remembered (until the load path
+     * changes or the resolutions are invalidated).
+     * 
+     * @param location
+     * @return
+     */
+    private Pathname findInLoadPath(String location) {
+        LoadPathIndex indexed = index;
+        boolean isIndexed = ((null != indexed) && LoadPathIndex.isIndexable(location));
+        Pathname[] paths;
+        synchronized (resolutions) {
+            paths = getSearchPath();
+            if (!isIndexed) {
+                Pathname resolved = resolutions.get(location);
+                if (null != resolved) { return (resolved == NOT_FOUND) ? null : resolved; }
+            }
+        }
+        
+        if (isIndexed) {
+            // the load path is listed (on first use) outside of 
+            // the lock, so that other look-ups are not held up
+            String found = indexed.find(paths, location);
+            return (null != found) ? getPathname(found) : null;
+        }
+        
+        Pathname found = null;
+        for (int i = 0; (i < paths.length) && (null == found); i++) {
+            found = paths[i].find(location);
         }
         
-        // making sure that the files from the path
-        // which was added last appear first in the 
-        // resulting list
-        Collections.reverse(list);
+        synchronized (resolutions) {
+            // the load path may have changed in the meantime
+            if (paths == searchPath) { resolutions.put(location, (null != found) ? found : NOT_FOUND); }
+        }
         
-        return list;
+        return found;
+    }
+    
+    /**
+     * @return the load path, in the order it is searched in
+     */
+    private Pathname[] getSearchPath() {
+        if (null == searchPath) {
+            List<Pathname> list = new ArrayList<Pathname>(loadPath);
+            
+            // making sure that the path which 
+            // was added last is searched first
+            Collections.reverse(list);
+            searchPath = list.toArray(new Pathname[list.size()]);
+        }
+        return searchPath;
     }
     
     /**
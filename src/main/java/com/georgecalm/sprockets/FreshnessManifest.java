@@ -0,0 +1,220 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ *  The FreshnessManifest records the size and mtime
+ *  of every file a concatenation was built from: the
+ *  required SourceFiles (including the ones which
+ *  only hold directives or comments), the constants.yml
+ *  files and the directories (whose mtimes change when
+ *  files are added or removed): those of the load path,
+ *  those of the SourceFiles, and those beneath every
+ *  directory of the load path a require was looked up
+ *  through, where a file added later would take its place.
+ * 
+ *  The SourceFiles are recorded with the size and mtime
+ *  they had when their lines were read, so that a file
+ *  which changes between the build and the recording is
+ *  not taken for the one the concatenation was built from.
+ * 
+ *  Whether any of them has changed since is found out
+ *  by stat-ing the recorded files again (in parallel),
+ *  without reading or lexing anything.
+ * 
+ *  Note that the directories change when files are
+ *  written to them, so a concatenation should not be
+ *  saved to a directory of the load path or of the
+ *  SourceFiles.
+ */
+public class FreshnessManifest {
+    private static final int FILES_PER_TASK = 64;
+    private File[] files;
+    private long[] mtimes, lengths;
+    private boolean[] directories;
+    
+    /**
+     * Records the given files as they are now.
+     * Files which do not exist are recorded too,
+     * so that it is noticed when they are created.
+     * 
+     * @param files
+     */
+    public FreshnessManifest(Collection<File> files) {
+        this(files, null);
+    }
+    
+    /**
+     * Records the given files as they are now, except
+     * for those the given lines were read from, which
+     * are recorded as they were when they were read.
+     * 
+     * @param files
+     * @param lineTables by file, or null
+     */
+    FreshnessManifest(Collection<File> files, Map<File, LineTable> lineTables) {
+        this.files = new LinkedHashSet<File>(files).toArray(new File[0]);
+        this.mtimes = new long[this.files.length];
+        this.lengths = new long[this.files.length];
+        this.directories = new boolean[this.files.length];
+        Workers.getPool().invoke(new StatTask(0, this.files.length, mtimes, lengths, directories, lineTables));
+    }
+    
+    /**
+     * Records the files the given Preprocessor
+     * has built its concatenation from.
+     * 
+     * @param preprocessor
+     * @return
+     */
+    public static FreshnessManifest of(Preprocessor preprocessor) {
+        List<File> files = new ArrayList<File>();
+        Map<File, LineTable> lineTables = new HashMap<File, LineTable>();
+        Set<Pathname> loadPath = preprocessor.getEnvironment().getLoadPath();
+        for (Pathname path : loadPath) {
+            files.add(new File(path.getAbsoluteLocation()));
+            files.add(new File(path.getAbsoluteLocation(), "constants.yml"));
+        }
+        
+        DependencyGraph graph = preprocessor.getDependencyGraph();
+        for (SourceFile sourceFile : preprocessor.getSourceFiles()) {
+            File file = new File(sourceFile.getPathname().getAbsoluteLocation());
+            files.add(file);
+            files.add(file.getParentFile());
+            
+            LineTable lines = preprocessor.getHeldLineTable(sourceFile);
+            if (null != lines) { lineTables.put(file, lines); }
+            
+            for (DependencyGraph.Edge edge : graph.getEdgesFrom(sourceFile)) {
+                if (edge.getKind() == DependencyGraph.EdgeKind.REQUIRE) { addLookupDirectories(files, edge.getOrigin(), loadPath); }
+            }
+        }
+        
+        return new FreshnessManifest(files, lineTables);
+    }
+    
+    /**
+     * Adds the nested directories a require of
+     * the load path (e.g. "<foo/bar>") was looked up
+     * through in every directory of the load path, as
+     * a file added to any of them may shadow the file
+     * the require was resolved to. Relative requires
+     * are only looked up in the directory of the file
+     * they were resolved to, which is recorded anyway.
+     */
+    static void addLookupDirectories(Collection<File> files, SourceLine line, Set<Pathname> loadPath) {
+        String require = line.getRequire();
+        if (require.charAt(0) == '"') { return; }
+        
+        String parent = new File(require.substring(1, (require.length() - 1))).getParent();
+        if (null == parent) { return; }
+        
+        for (Pathname path : loadPath) {
+            String base = FilenameUtils.normalizeNoEndSeparator(path.getAbsoluteLocation());
+            String location = FilenameUtils.normalizeNoEndSeparator(new File(base, parent).getPath());
+            
+            // up to the directory of the load path, but not above it
+            for (File dir = (null != location) ? new File(location) : null; 
+                    (null != dir) && dir.getPath().startsWith(base + File.separator); dir = dir.getParentFile()) {
+                files.add(dir);
+            }
+        }
+    }
+    
+    public List<File> getFiles() { return Arrays.asList(files); }
+    
+    /**
+     * @return the latest recorded mtime of the files which
+     *         are not directories, or null if none of them exist
+     */
+    public Long getLastModified() {
+        Long lastModified = null;
+        for (int i = 0; i < files.length; i++) {
+            if ((mtimes[i] > 0) && !directories[i] && ((null == lastModified) || (mtimes[i] > lastModified))) { 
+                lastModified = mtimes[i]; 
+            }
+        }
+        return lastModified;
+    }
+    
+    /**
+     * Stats the recorded files again.
+     * 
+     * @return the files whose size or mtime have changed, 
+     *         which have been created or which have been removed
+     */
+    public List<File> getChangedFiles() {
+        long[] currentMtimes = new long[files.length], currentLengths = new long[files.length];
+        Workers.getPool().invoke(new StatTask(0, files.length, currentMtimes, currentLengths, null, null));
+        
+        List<File> changed = new ArrayList<File>();
+        for (int i = 0; i < files.length; i++) {
+            if ((currentMtimes[i] != mtimes[i]) || (currentLengths[i] != lengths[i])) { changed.add(files[i]); }
+        }
+        return changed;
+    }
+    
+    /**
+     * @return true if none of the recorded files has changed
+     */
+    public boolean isFresh() {
+        return getChangedFiles().isEmpty();
+    }
+    
+    /**
+     * Stats a range of the files, splitting
+     * it up if it holds too many of them.
+     */
+    private class StatTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private int start, end;
+        private long[] mtimes, lengths;
+        private boolean[] directories;
+        private Map<File, LineTable> lineTables;
+        
+        public StatTask(int start, int end, long[] mtimes, long[] lengths, boolean[] directories, 
+                Map<File, LineTable> lineTables) {
+            this.start = start;
+            this.end = end;
+            this.mtimes = mtimes;
+            this.lengths = lengths;
+            this.directories = directories;
+            this.lineTables = lineTables;
+        }
+        
+        @Override
+        protected void compute() {
+            if ((end - start) > FILES_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new StatTask(start, middle, mtimes, lengths, directories, lineTables), 
+                        new StatTask(middle, end, mtimes, lengths, directories, lineTables));
+                return;
+            }
+            
+            for (int i = start; i < end; i++) {
+                LineTable lines = (null != lineTables) ? lineTables.get(files[i]) : null;
+                if ((null != lines) && (lines.getReadMtime() >= 0)) {
+                    mtimes[i] = lines.getReadMtime();
+                    lengths[i] = lines.getReadLength();
+                    continue;
+                }
+                
+                // both are 0 if the file does not exist
+                mtimes[i] = files[i].lastModified();
+                lengths[i] = files[i].length();
+                if (null != directories) { directories[i] = files[i].isDirectory(); }
+            }
+        }
+    }
+}
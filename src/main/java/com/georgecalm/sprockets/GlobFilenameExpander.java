@@ -2,53 +2,662 @@ package com.georgecalm.sprockets;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
-import org.apache.commons.io.DirectoryWalker;
+import org.apache.commons.io.FilenameUtils;
 
-public class GlobFilenameExpander extends DirectoryWalker {
-    private Pattern pattern;
+/**
+ *  The GlobFilenameExpander finds the files and
+ *  directories beneath a start directory which match
+ *  a glob, much like Ruby's Dir[]: the glob is split
+ *  into segments (at '/'), '*', '?', '[...]' and '{...}'
+ *  match within a segment, and a "**" segment matches
+ *  any number of directories (or, as the last segment, 
+ *  anything beneath them). A glob which ends in a
+ *  separator only matches directories. Braces whose
+ *  alternatives span directories (e.g. "{a/b,c}.js")
+ *  are expanded into globs of their own first.
+ * 
+ *  The walk starts at the literal prefix of the glob,
+ *  and only descends into directories which can still
+ *  lead to a match. Only the names of the files are
+ *  matched, one segment at a time.
+ * 
+ *  Several globs are expanded together in one walk
+ *  per directory their literal prefixes share, 
+ *  matching the names against all of them at once.
+ * 
+ *  With a parallelism of more than one, the
+ *  subdirectories are walked in parallel, reading
+ *  at most a given number of directories at once.
+ *  Either way, the files are returned sorted.
+ * 
+ *  The segments are compiled once and cached. Literal
+ *  segments and the ones with a single '*' (e.g. "*.js")
+ *  are matched by comparing strings; all others with
+ *  the regular expression they are translated to.
+ */
+public class GlobFilenameExpander {
+    public static final int DEFAULT_MAX_OPEN_DIRECTORIES = 64;
+    private static final String ANY_DIRECTORIES = "**";
+    private static final int MAX_CACHED_SEGMENTS = 1024;
+    private static final boolean IGNORE_CASE = (File.separatorChar == '\\');
+    private static ConcurrentMap<String, NameMatcher> nameMatchers = new ConcurrentHashMap<String, NameMatcher>();
     private File startDirectory;
+    private int parallelism;
+    private Semaphore openDirectories;
     
-    public GlobFilenameExpander(File startDirectory) {
-        super();
+    public GlobFilenameExpander(File startDirectory) { this(startDirectory, 1, DEFAULT_MAX_OPEN_DIRECTORIES); }
+    
+    /**
+     * Creates an expander which walks the directories
+     * beneath the start directory with the given
+     * number of threads.
+     * 
+     * @param startDirectory
+     * @param parallelism number of threads (1 to walk in the calling thread)
+     * @param maxOpenDirectories number of directories read at once
+     */
+    public GlobFilenameExpander(File startDirectory, int parallelism, int maxOpenDirectories) {
+        if ((parallelism < 1) || (maxOpenDirectories < 1)) { 
+            throw new IllegalArgumentException("parallelism and maxOpenDirectories must be positive"); 
+        }
         this.startDirectory = startDirectory;
+        this.parallelism = parallelism;
+        this.openDirectories = new Semaphore(maxOpenDirectories);
     }
-
+    
+    public int getParallelism() { return parallelism; }
+    
     public List<File> expand(String glob) throws IOException {
-        this.pattern = globToRegexPattern(new File(startDirectory + File.separator + glob).toString());
-        List<File> results = new ArrayList<File>();
-        walk(startDirectory, results);
-        return results;
+        return expand(Collections.singletonList(glob)).get(glob);
     }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    protected boolean handleDirectory(File directory, int depth,
-            Collection results) {
+    
+    /**
+     * Expands several globs, walking every directory
+     * beneath their literal prefixes only once.
+     * 
+     * @param globs relative to the start directory, or absolute
+     * @return the files of every glob, sorted, in the order of the globs
+     * @throws IOException
+     */
+    public Map<String, List<File>> expand(Collection<String> globs) throws IOException {
+        Map<String, List<String>> variants = new LinkedHashMap<String, List<String>>();
+        Set<String> all = new LinkedHashSet<String>();
+        for (String glob : globs) {
+            if (variants.containsKey(glob)) { continue; }
+            List<String> expandedBraces = expandBraces(glob);
+            variants.put(glob, expandedBraces);
+            all.addAll(expandedBraces);
+        }
+        
+        Map<String, List<File>> found = expandSegmented(all);
+        Map<String, List<File>> expanded = new LinkedHashMap<String, List<File>>();
+        for (Map.Entry<String, List<String>> entry : variants.entrySet()) {
+            if (entry.getValue().size() == 1) {
+                expanded.put(entry.getKey(), found.get(entry.getValue().get(0)));
+                continue;
+            }
+            
+            Set<File> files = new TreeSet<File>();
+            for (String variant : entry.getValue()) { files.addAll(found.get(variant)); }
+            expanded.put(entry.getKey(), new ArrayList<File>(files));
+        }
+        return expanded;
+    }
+    
+    /**
+     * Expands globs which can be split into segments
+     * (i.e. without braces which span directories).
+     */
+    private Map<String, List<File>> expandSegmented(Collection<String> globs) throws IOException {
+        Map<String, List<File>> expanded = new LinkedHashMap<String, List<File>>();
+        Map<Path, List<String>> globsByRoot = new LinkedHashMap<Path, List<String>>();
+        Map<String, Path> starts = new LinkedHashMap<String, Path>();
+        
+        for (String glob : globs) {
+            if (expanded.containsKey(glob)) { continue; }
+            List<File> results = new ArrayList<File>();
+            expanded.put(glob, results);
+            
+            // the literal prefix of the glob is where its walk starts
+            String prefix = FilenameUtils.getPrefix(glob);
+            File start = new File(glob).isAbsolute() ? new File(prefix) : startDirectory;
+            List<String> segments = split(glob.substring(new File(glob).isAbsolute() ? prefix.length() : 0));
+            int first = 0;
+            while ((first < segments.size()) && !isGlob(segments.get(first))) {
+                start = new File(start, segments.get(first++));
+            }
+            
+            if (first == segments.size()) {
+                boolean isDirectoryOnly = (glob.endsWith("/") || glob.endsWith(File.separator));
+                if (isDirectoryOnly ? start.isDirectory() : start.exists()) { results.add(start); }
+            } else if (start.isDirectory()) {
+                starts.put(glob, start.toPath());
+            }
+        }
         
-        Matcher m = pattern.matcher(directory.toString());
-        if (m.matches()) {
-            results.add(directory);
+        // globs whose walks start beneath the start of another glob share its walk
+        for (String glob : starts.keySet()) {
+            Path root = starts.get(glob);
+            for (Path start : starts.values()) {
+                if (root.startsWith(start)) { root = start; }
+            }
+            if (!globsByRoot.containsKey(root)) { globsByRoot.put(root, new ArrayList<String>()); }
+            globsByRoot.get(root).add(glob);
         }
         
-        boolean isDiveIntoDir = true;
-        return isDiveIntoDir;
+        for (Map.Entry<Path, List<String>> entry : globsByRoot.entrySet()) {
+            Path root = entry.getKey();
+            List<List<String>> segments = new ArrayList<List<String>>();
+            List<List<File>> results = new ArrayList<List<File>>();
+            List<Boolean> isDirectoryOnly = new ArrayList<Boolean>();
+            for (String glob : entry.getValue()) {
+                segments.add(getSegmentsBeneath(root, glob));
+                isDirectoryOnly.add(glob.endsWith("/") || glob.endsWith(File.separator));
+                results.add(expanded.get(glob));
+            }
+            
+            SegmentMatcher matcher = new SegmentMatcher(segments, isDirectoryOnly);
+            if (parallelism > 1) {
+                walkInParallel(matcher, root, results);
+            } else {
+                walk(matcher, root, results);
+            }
+        }
+        
+        for (List<File> results : expanded.values()) {
+            Collections.sort(results);
+        }
+        return expanded;
     }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    protected void handleFile(File file, int depth, Collection results) {
-        Matcher m = pattern.matcher(file.toString());
-        if (m.matches()) {
-            results.add(file);
+    
+    /**
+     * Walks the directories beneath the start
+     * of the walk in the calling thread.
+     */
+    private void walk(final SegmentMatcher matcher, final Path startPath, final List<List<File>> results) throws IOException {
+        final Map<Path, BitSet> states = new HashMap<Path, BitSet>();
+        states.put(startPath, matcher.getStartStates());
+        
+        Files.walkFileTree(startPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, 
+                new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(startPath)) { return FileVisitResult.CONTINUE; }
+                
+                BitSet next = matcher.next(states.get(dir.getParent()), dir.getFileName());
+                matcher.addMatch(results, next, dir.toFile(), true);
+                if (!matcher.canMatchBeneath(next)) { return FileVisitResult.SKIP_SUBTREE; }
+                
+                states.put(dir, next);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                BitSet next = matcher.next(states.get(file.getParent()), file.getFileName());
+                matcher.addMatch(results, next, file.toFile(), false);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                // a loop of symbolic links is dropped, while a directory which
+                // can not be read is still matched, as in DirectoryTask
+                if (file.equals(startPath) || (ex instanceof FileSystemLoopException)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                BitSet next = matcher.next(states.get(file.getParent()), file.getFileName());
+                matcher.addMatch(results, next, file.toFile(), Files.isDirectory(file));
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                states.remove(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * @return a key which identifies the directory (following
+     *         symbolic links), or null if it is not one
+     */
+    private static Object getDirectoryKey(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isDirectory()) { return null; }
+            return (null != attrs.fileKey()) ? attrs.fileKey() : path.toRealPath();
+        } catch (IOException ex) {
+            // e.g. a broken symbolic link
+            return null;
+        }
+    }
+    
+    /**
+     * Walks the directories beneath the start of the
+     * walk in a pool of its own, with the parallelism
+     * of this expander, which is shut down afterwards.
+     */
+    private void walkInParallel(SegmentMatcher matcher, Path startPath, List<List<File>> results) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Ancestor ancestors = new Ancestor(getDirectoryKey(startPath), null);
+            addAll(results, pool.invoke(new DirectoryTask(matcher, startPath, matcher.getStartStates(), ancestors)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private static void addAll(List<List<File>> results, List<List<File>> more) {
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).addAll(more.get(i));
+        }
+    }
+    
+    /**
+     * The segments of a glob beneath the root of
+     * its walk, i.e. the names of the directories 
+     * from the root to the start of the glob's own
+     * walk, followed by the rest of the glob.
+     */
+    private List<String> getSegmentsBeneath(Path root, String glob) {
+        boolean isAbsolute = new File(glob).isAbsolute();
+        String prefix = FilenameUtils.getPrefix(glob);
+        List<String> segments = split(glob.substring(isAbsolute ? prefix.length() : 0));
+        
+        Path start = (isAbsolute ? new File(prefix) : startDirectory).toPath();
+        int first = 0;
+        while (!start.equals(root)) {
+            start = start.resolve(segments.get(first++));
+        }
+        return segments.subList(first, segments.size());
+    }
+    
+    /**
+     * Splits a glob into its segments at the
+     * separators which are not within '{...}' or
+     * '[...]', dropping empty ones (e.g. of a 
+     * trailing separator).
+     */
+    private static List<String> split(String glob) {
+        List<String> segments = new ArrayList<String>();
+        StringBuilder segment = new StringBuilder();
+        int braces = 0;
+        boolean isInBrackets = false;
+        
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (isSeparator(c) && (braces == 0) && !isInBrackets) {
+                addSegment(segments, segment);
+                continue;
+            }
+            
+            segment.append(c);
+            if ((c == '\\') && ((i + 1) < glob.length())) {
+                segment.append(glob.charAt(++i));
+            } else if (isInBrackets) {
+                isInBrackets = (c != ']');
+            } else if ((c == '[') && (glob.indexOf(']', (i + 1)) >= 0)) {
+                isInBrackets = true;
+            } else if ((c == '{') && (glob.indexOf('}', (i + 1)) >= 0)) {
+                braces++;
+            } else if ((c == '}') && (braces > 0)) {
+                braces--;
+            }
+        }
+        
+        addSegment(segments, segment);
+        return segments;
+    }
+    
+    private static void addSegment(List<String> segments, StringBuilder segment) {
+        if ((segment.length() > 0) && !".".contentEquals(segment)) { segments.add(segment.toString()); }
+        segment.setLength(0);
+    }
+    
+    private static boolean isSeparator(char c) {
+        return ((c == '/') || (c == File.separatorChar));
+    }
+    
+    /**
+     * Expands the first braces whose alternatives
+     * contain a separator into a glob per alternative,
+     * and those globs in turn, so that the globs which
+     * are left can be split into segments.
+     * 
+     * @param glob
+     * @return the glob itself, if it has no such braces
+     */
+    static List<String> expandBraces(String glob) {
+        int open = -1, depth = 0;
+        boolean hasSeparator = false;
+        
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if ((c == '\\') && !isSeparator(c)) {
+                i++; // an escaped character
+            } else if (c == '{') {
+                if (depth++ == 0) { open = i; hasSeparator = false; }
+            } else if ((c == '}') && (depth > 0)) {
+                if ((--depth == 0) && hasSeparator) { return expandBraces(glob, open, i); }
+            } else if ((depth > 0) && isSeparator(c)) {
+                hasSeparator = true;
+            }
+        }
+        
+        return Collections.singletonList(glob);
+    }
+    
+    private static List<String> expandBraces(String glob, int open, int close) {
+        List<String> globs = new ArrayList<String>();
+        String prefix = glob.substring(0, open), suffix = glob.substring(close + 1);
+        int from = (open + 1), depth = 0;
+        
+        for (int i = (open + 1); i <= close; i++) {
+            char c = glob.charAt(i);
+            if ((c == '\\') && !isSeparator(c)) {
+                i++;
+            } else if (c == '{') {
+                depth++;
+            } else if ((c == '}') && (depth > 0)) {
+                depth--;
+            } else if (((c == ',') && (depth == 0)) || (i == close)) {
+                for (String expanded : expandBraces(prefix + glob.substring(from, i) + suffix)) {
+                    if (!globs.contains(expanded)) { globs.add(expanded); }
+                }
+                from = (i + 1);
+            }
+        }
+        
+        return globs;
+    }
+    
+    /**
+     * Compiles a segment of a glob, or takes
+     * it from the cache if it has been before.
+     */
+    private static NameMatcher compile(String segment) {
+        NameMatcher matcher = nameMatchers.get(segment);
+        if (null != matcher) { return matcher; }
+        
+        int star = segment.indexOf('*');
+        if (!isGlob(segment)) {
+            matcher = new NameMatcher(segment, null, null);
+        } else if ((star >= 0) && !isGlob(segment.substring(0, star)) && !isGlob(segment.substring(star + 1))) {
+            matcher = new NameMatcher(segment.substring(0, star), segment.substring(star + 1), null);
+        } else {
+            Pattern pattern = globToRegexPattern(segment);
+            if (IGNORE_CASE) { pattern = Pattern.compile(pattern.pattern(), (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)); }
+            matcher = new NameMatcher(null, null, pattern);
+        }
+        
+        if (nameMatchers.size() >= MAX_CACHED_SEGMENTS) { nameMatchers.clear(); }
+        NameMatcher cached = nameMatchers.putIfAbsent(segment, matcher);
+        return (null != cached) ? cached : matcher;
+    }
+    
+    private static boolean isGlob(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            if ("*?[{\\".indexOf(segment.charAt(i)) >= 0) { return true; }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads a directory, matches its entries and walks
+     * the subdirectories which can lead to a match in
+     * tasks of their own. The directory is closed before
+     * the subdirectories are walked, so that a task never
+     * waits for another while it keeps a directory open.
+     */
+    private class DirectoryTask extends RecursiveTask<List<List<File>>> {
+        private static final long serialVersionUID = 1L;
+        private SegmentMatcher matcher;
+        private Path dir;
+        private BitSet states;
+        private Ancestor ancestors;
+        
+        public DirectoryTask(SegmentMatcher matcher, Path dir, BitSet states, Ancestor ancestors) {
+            this.matcher = matcher;
+            this.dir = dir;
+            this.states = states;
+            this.ancestors = ancestors;
+        }
+        
+        @Override
+        protected List<List<File>> compute() {
+            List<List<File>> results = new ArrayList<List<File>>();
+            for (int i = 0; i < matcher.getGlobCount(); i++) { results.add(new ArrayList<File>()); }
+            List<DirectoryTask> tasks = new ArrayList<DirectoryTask>();
+            
+            for (Path entry : read()) {
+                BitSet next = matcher.next(states, entry.getFileName());
+                boolean canMatchBeneath = matcher.canMatchBeneath(next);
+                if (!canMatchBeneath && !matcher.isMatch(next)) { continue; }
+                
+                Object key = getDirectoryKey(entry);
+                if ((null != key) && Ancestor.contains(ancestors, key)) { continue; } // a loop, dropped as in walk()
+                
+                matcher.addMatch(results, next, entry.toFile(), (null != key));
+                if (canMatchBeneath && (null != key)) {
+                    tasks.add(new DirectoryTask(matcher, entry, next, new Ancestor(key, ancestors)));
+                }
+            }
+            
+            invokeAll(tasks);
+            for (DirectoryTask task : tasks) {
+                addAll(results, task.join());
+            }
+            return results;
+        }
+        
+        private List<Path> read() {
+            List<Path> entries = new ArrayList<Path>();
+            openDirectories.acquireUninterruptibly();
+            try {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+                try {
+                    for (Path entry : stream) { entries.add(entry); }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException | RuntimeException ex) {
+                // a directory which can not be read is skipped, as in walk()
+            } finally {
+                openDirectories.release();
+            }
+            return entries;
+        }
+    }
+    
+    /**
+     * The directories on the way down to a directory,
+     * so that loops of symbolic links are not followed.
+     */
+    private static class Ancestor {
+        private Object key;
+        private Ancestor parent;
+        
+        public Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+        
+        public static boolean contains(Ancestor ancestor, Object key) {
+            for (; null != ancestor; ancestor = ancestor.parent) {
+                if (ancestor.key.equals(key)) { return true; }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Matches a name against a segment of a glob: a
+     * literal (prefix only), a prefix and a suffix around
+     * a single '*', or a regular expression.
+     */
+    private static class NameMatcher {
+        private String prefix, suffix;
+        private Pattern pattern;
+        
+        public NameMatcher(String prefix, String suffix, Pattern pattern) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.pattern = pattern;
+        }
+        
+        public boolean matches(String name) {
+            if (null != pattern) { return pattern.matcher(name).matches(); }
+            
+            int length = name.length();
+            if ((null == suffix) ? (length != prefix.length()) : (length < (prefix.length() + suffix.length()))) { 
+                return false; 
+            }
+            return (name.regionMatches(IGNORE_CASE, 0, prefix, 0, prefix.length())
+                    && ((null == suffix) || name.regionMatches(IGNORE_CASE, (length - suffix.length()), suffix, 0, suffix.length())));
+        }
+    }
+    
+    /**
+     * Matches the names of the directories on the
+     * way down from the start directory against the
+     * segments of one or more globs. The states of
+     * the segments of all globs are numbered one after
+     * the other, each glob ending in a state of its
+     * own which means that it matches. The state of a
+     * directory is the set of segments the names beneath
+     * it may match next (more than one because of "**"s
+     * and of the other globs).
+     */
+    private static class SegmentMatcher {
+        private NameMatcher[] matchers;
+        private boolean[] isLast;
+        private int[] accepts;
+        private List<Boolean> isDirectoryOnly;
+        
+        public SegmentMatcher(List<List<String>> globs, List<Boolean> isDirectoryOnly) {
+            this.isDirectoryOnly = isDirectoryOnly;
+            int count = 0;
+            for (List<String> segments : globs) { count += segments.size() + 1; }
+            this.matchers = new NameMatcher[count];
+            this.isLast = new boolean[count];
+            this.accepts = new int[globs.size()];
+            
+            int i = 0;
+            for (int g = 0; g < globs.size(); g++) {
+                for (String segment : globs.get(g)) {
+                    if (!ANY_DIRECTORIES.equals(segment)) {
+                        matchers[i] = compile(segment);
+                    }
+                    i++;
+                }
+                isLast[i - 1] = true;
+                accepts[g] = i++;
+            }
+        }
+        
+        public int getGlobCount() { return accepts.length; }
+        
+        public BitSet getStartStates() {
+            BitSet states = new BitSet(matchers.length);
+            for (int g = 0; g < accepts.length; g++) {
+                add(states, (0 == g) ? 0 : (accepts[g - 1] + 1));
+            }
+            return states;
+        }
+        
+        /**
+         * @param states of the parent directory
+         * @param name of the file or directory
+         * @return the states of the file or directory
+         */
+        public BitSet next(BitSet states, Path name) {
+            BitSet next = new BitSet(matchers.length);
+            
+            for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+                if (isAccept(i)) { continue; }
+                
+                if (null == matchers[i]) {
+                    // "**" takes the name as one of its directories, and
+                    // matches anything beneath it when it is the last segment
+                    add(next, i);
+                    if (isLast[i]) { next.set(i + 1); }
+                } else if (matchers[i].matches(name.toString())) {
+                    add(next, (i + 1));
+                }
+            }
+            
+            return next;
+        }
+        
+        /**
+         * Adds a file to the results of
+         * the globs it matches.
+         */
+        public void addMatch(List<List<File>> results, BitSet states, File file, boolean isDirectory) {
+            for (int g = 0; g < accepts.length; g++) {
+                if (states.get(accepts[g]) && (isDirectory || !isDirectoryOnly.get(g))) { results.get(g).add(file); }
+            }
+        }
+        
+        public boolean isMatch(BitSet states) {
+            for (int accept : accepts) {
+                if (states.get(accept)) { return true; }
+            }
+            return false;
+        }
+        
+        public boolean canMatchBeneath(BitSet states) {
+            for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+                if (!isAccept(i)) { return true; }
+            }
+            return false;
+        }
+        
+        private boolean isAccept(int i) {
+            return ((i > 0) && isLast[i - 1]);
+        }
+        
+        /**
+         * Adds a state, and the states after the
+         * "**"s which match no directories at all.
+         */
+        private void add(BitSet states, int i) {
+            states.set(i);
+            while (!isAccept(i) && !isLast[i] && (null == matchers[i])) {
+                states.set(++i);
+            }
         }
     }
     
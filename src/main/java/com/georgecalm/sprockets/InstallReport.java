@@ -0,0 +1,46 @@
+package com.georgecalm.sprockets;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Counts the files (and their bytes) which were
+ *  copied or linked by an AssetInstaller, and the ones
+ *  which were skipped because they were up to date.
+ */
+public class InstallReport {
+    private AtomicInteger copiedFiles = new AtomicInteger();
+    private AtomicLong copiedBytes = new AtomicLong();
+    private AtomicInteger linkedFiles = new AtomicInteger();
+    private AtomicLong linkedBytes = new AtomicLong();
+    private AtomicInteger skippedFiles = new AtomicInteger();
+    private AtomicLong skippedBytes = new AtomicLong();
+    
+    public int getCopiedFiles() { return copiedFiles.get(); }
+    public long getCopiedBytes() { return copiedBytes.get(); }
+    public int getLinkedFiles() { return linkedFiles.get(); }
+    public long getLinkedBytes() { return linkedBytes.get(); }
+    public int getSkippedFiles() { return skippedFiles.get(); }
+    public long getSkippedBytes() { return skippedBytes.get(); }
+    
+    void copied(long bytes) {
+        copiedFiles.incrementAndGet();
+        copiedBytes.addAndGet(bytes);
+    }
+    
+    void linked(long bytes) {
+        linkedFiles.incrementAndGet();
+        linkedBytes.addAndGet(bytes);
+    }
+    
+    void skipped(long bytes) {
+        skippedFiles.incrementAndGet();
+        skippedBytes.addAndGet(bytes);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("copied %d files (%d bytes), linked %d files (%d bytes), skipped %d files (%d bytes)", 
+                getCopiedFiles(), getCopiedBytes(), getLinkedFiles(), getLinkedBytes(), getSkippedFiles(), getSkippedBytes());
+    }
+}
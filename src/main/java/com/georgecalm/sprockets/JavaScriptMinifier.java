@@ -0,0 +1,281 @@
+package com.georgecalm.sprockets;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  The JavaScriptMinifier removes comments and
+ *  the white-space which is not needed from the
+ *  lines of a concatenation. Strings, template
+ *  literals (with their ${...} expressions) and
+ *  regular expression literals are kept as they are.
+ * 
+ *  Line breaks are kept where removing them could 
+ *  change the meaning of the code because of the
+ *  automatic insertion of semicolons. Comments which
+ *  begin with "/*!" (e.g. licenses) are kept too.
+ */
+public class JavaScriptMinifier implements OutputFilter {
+    private static final Set<String> KEYWORDS_BEFORE_EXPRESSIONS = new HashSet<String>(Arrays.asList(
+            "return", "typeof", "instanceof", "in", "of", "new", "delete", "void", 
+            "throw", "case", "do", "else", "yield", "await"));
+    
+    public Pass begin() {
+        return new MinifierPass();
+    }
+    
+    private static boolean isIdentifierPart(char c) {
+        return (Character.isLetterOrDigit(c) || (c == '_') || (c == '$') || (c == '\\') || (c > 126));
+    }
+    
+    /**
+     * The state of a pass, which can span lines.
+     */
+    private static class MinifierPass implements Pass {
+        private enum State { CODE, STRING, TEMPLATE, REGEX, REGEX_CLASS, BLOCK_COMMENT, KEPT_COMMENT }
+        
+        private State state = State.CODE;
+        private char quote;
+        private boolean isEscaped;
+        // the braces open in the ${...} expressions of the template literals
+        private Deque<Integer> templateBraces = new ArrayDeque<Integer>();
+        
+        private char last = 0;
+        private boolean isLastLiteral;
+        private StringBuilder word = new StringBuilder();
+        private boolean isSpacePending, isLineBreakPending;
+        
+        public void filter(CharSequence line, StringBuilder out) {
+            int length = line.length();
+            
+            for (int i = 0; i < length; i++) {
+                char c = line.charAt(i);
+                
+                switch (state) {
+                case STRING:
+                    out.append(c);
+                    if (isEscaped) {
+                        i = endEscape(line, i, out);
+                    } else if (c == '\\') {
+                        isEscaped = true;
+                    } else if ((c == quote) || (c == '\n')) {
+                        // (a line break ends an unterminated string)
+                        endLiteral(c);
+                    }
+                    break;
+                
+                case TEMPLATE:
+                    out.append(c);
+                    if (isEscaped) {
+                        i = endEscape(line, i, out);
+                    } else if (c == '\\') {
+                        isEscaped = true;
+                    } else if (c == '`') {
+                        endLiteral(c);
+                    } else if ((c == '$') && ((i + 1) < length) && (line.charAt(i + 1) == '{')) {
+                        out.append('{');
+                        i++;
+                        templateBraces.push(0);
+                        state = State.CODE;
+                        last = '{';
+                        isLastLiteral = false;
+                    }
+                    break;
+                
+                case REGEX:
+                case REGEX_CLASS:
+                    if (c == '\n' || c == '\r') {
+                        // not a regular expression after all
+                        state = State.CODE;
+                        isLineBreakPending = true;
+                        break;
+                    }
+                    out.append(c);
+                    if (isEscaped) {
+                        isEscaped = false;
+                    } else if (c == '\\') {
+                        isEscaped = true;
+                    } else if (c == '[') {
+                        state = State.REGEX_CLASS;
+                    } else if ((c == ']') && (State.REGEX_CLASS == state)) {
+                        state = State.REGEX;
+                    } else if ((c == '/') && (State.REGEX == state)) {
+                        endLiteral(c);
+                    }
+                    break;
+                
+                case BLOCK_COMMENT:
+                case KEPT_COMMENT:
+                    if (State.KEPT_COMMENT == state) { out.append(c); }
+                    if ((c == '\n') && (State.BLOCK_COMMENT == state)) { isLineBreakPending = true; }
+                    if ((c == '*') && ((i + 1) < length) && (line.charAt(i + 1) == '/')) {
+                        if (State.KEPT_COMMENT == state) { out.append('/'); }
+                        i++;
+                        state = State.CODE;
+                        isSpacePending = true;
+                    }
+                    break;
+                
+                default:
+                    i = code(line, i, out);
+                }
+            }
+        }
+        
+        public void finish(StringBuilder out) {
+            isSpacePending = isLineBreakPending = false;
+        }
+        
+        /**
+         * Ends an escape sequence of a string or template
+         * literal, whose escaped character has been appended.
+         * A CRLF after the backslash is a single line
+         * continuation, so its LF is appended too.
+         * 
+         * @return the index of the last character of the sequence
+         */
+        private int endEscape(CharSequence line, int i, StringBuilder out) {
+            isEscaped = false;
+            if ((line.charAt(i) == '\r') && ((i + 1) < line.length()) && (line.charAt(i + 1) == '\n')) {
+                out.append('\n');
+                return (i + 1);
+            }
+            return i;
+        }
+        
+        /**
+         * Handles a character of code.
+         * 
+         * @return the index of the last character handled
+         */
+        private int code(CharSequence line, int i, StringBuilder out) {
+            char c = line.charAt(i);
+            char next = ((i + 1) < line.length()) ? line.charAt(i + 1) : 0;
+            
+            if ((c == '\n') || (c == '\r')) {
+                isLineBreakPending = true;
+                return i;
+            }
+            if (Character.isWhitespace(c)) {
+                isSpacePending = true;
+                return i;
+            }
+            
+            if (c == '/') {
+                if (next == '/') {
+                    // the rest of the line is a comment
+                    isLineBreakPending = true;
+                    return (line.length() - 1);
+                }
+                if (next == '*') {
+                    boolean isKept = (((i + 2) < line.length()) && (line.charAt(i + 2) == '!'));
+                    if (isKept) { 
+                        separate(c, out);
+                        out.append("/*");
+                    }
+                    state = isKept ? State.KEPT_COMMENT : State.BLOCK_COMMENT;
+                    return (i + 1);
+                }
+            }
+            
+            boolean isRegex = ((c == '/') && isRegexAllowed());
+            separate(c, out);
+            out.append(c);
+            
+            if (isIdentifierPart(c)) {
+                if (!isIdentifierPart(last) || isLastLiteral) { word.setLength(0); }
+                word.append(c);
+            } else {
+                word.setLength(0);
+            }
+            last = c;
+            isLastLiteral = false;
+            
+            if (isRegex) {
+                state = State.REGEX;
+                isEscaped = false;
+            } else if ((c == '\'') || (c == '"')) {
+                state = State.STRING;
+                quote = c;
+                isEscaped = false;
+            } else if (c == '`') {
+                state = State.TEMPLATE;
+                isEscaped = false;
+            } else if ((c == '{') && !templateBraces.isEmpty()) {
+                templateBraces.push(templateBraces.pop() + 1);
+            } else if ((c == '}') && !templateBraces.isEmpty()) {
+                int braces = templateBraces.pop();
+                if (braces == 0) {
+                    // the end of an expression of a template literal
+                    state = State.TEMPLATE;
+                } else {
+                    templateBraces.push(braces - 1);
+                }
+            }
+            
+            return i;
+        }
+        
+        /**
+         * Writes the white-space before the given 
+         * character which can not be left out.
+         */
+        private void separate(char next, StringBuilder out) {
+            if ((0 != last) && isLineBreakPending && isLineBreakNeeded(next)) {
+                out.append('\n');
+            } else if ((0 != last) && (isSpacePending || isLineBreakPending) && isSpaceNeeded(next)) {
+                out.append(' ');
+            }
+            isSpacePending = isLineBreakPending = false;
+        }
+        
+        private boolean isSpaceNeeded(char next) {
+            return ((isIdentifierPart(last) && isIdentifierPart(next) && !isLastLiteral)
+                    || ((next == '.') && isNumber())
+                    || (isLastLiteral && (last == '/') && isIdentifierPart(next))
+                    || (((last == '+') || (last == '-') || (last == '/')) && (next == last)));
+        }
+        
+        /**
+         * Determines whether the last word is a numeric
+         * literal, which a '.' right after it would
+         * continue (e.g. "1 .toString()").
+         */
+        private boolean isNumber() {
+            return (!isLastLiteral && (word.length() > 0) && Character.isDigit(word.charAt(0)));
+        }
+        
+        /**
+         * A line break is kept between the end of a
+         * statement and what may be the beginning of
+         * another one.
+         */
+        private boolean isLineBreakNeeded(char next) {
+            boolean canEnd = (isIdentifierPart(last) || isLastLiteral || (")]}+-".indexOf(last) >= 0));
+            boolean canBegin = (isIdentifierPart(next) || ("{[(+-!~'\"`/".indexOf(next) >= 0));
+            return (canEnd && canBegin);
+        }
+        
+        /**
+         * Determines whether a '/' begins a regular 
+         * expression, rather than being a division,
+         * by what comes before it.
+         */
+        private boolean isRegexAllowed() {
+            if (0 == last) { return true; }
+            if (isLastLiteral || (")]}".indexOf(last) >= 0)) { return false; }
+            if (isIdentifierPart(last)) { return KEYWORDS_BEFORE_EXPRESSIONS.contains(word.toString()); }
+            return true;
+        }
+        
+        private void endLiteral(char c) {
+            state = State.CODE;
+            last = c;
+            isLastLiteral = true;
+            word.setLength(0);
+        }
+    }
+}
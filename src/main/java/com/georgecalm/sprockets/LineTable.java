@@ -0,0 +1,360 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ *  The LineTable holds all lines of a SourceFile
+ *  in a few flat arrays: the decoded text of the
+ *  file (terminators included), the char and byte
+ *  offsets at which every line starts, and the
+ *  kind of every line as lexed by the SourceLineLexer.
+ *  The lines which reference constants are compiled
+ *  into ConstantTemplates once, along with the lexing.
+ * 
+ *  SourceLines are only light views over a line
+ *  of this table.
+ */
+public class LineTable {
+    /**
+     * Kind flag of lines which are a part
+     * of a PDoc comment (see SourceLine.setComment()).
+     */
+    public static final int MARKED_AS_COMMENT = 1 << 7;
+    
+    private SourceFile sourceFile;
+    private char[] text;
+    private int[] offsets;
+    private int[] byteOffsets;
+    private byte[] kinds;
+    private ConstantTemplate[] templates;
+    private int firstNumber;
+    private boolean isTerminated;
+    private long readLength = -1, readMtime = -1;
+    
+    /**
+     * Creates a table for the lines of a file.
+     * 
+     * @param sourceFile the lines belong to
+     * @param text of the file, terminators included
+     * @param offsets in text of each line, followed by the end of the text
+     * @param byteOffsets in the file of each line, followed by its size (or null if unknown)
+     */
+    public LineTable(SourceFile sourceFile, char[] text, int[] offsets, int[] byteOffsets) {
+        this(sourceFile, text, offsets, byteOffsets, 0, true);
+    }
+    
+    /**
+     * Creates a table for the lines of a file
+     * which have been lexed already (e.g. by
+     * a table read from the ParseCache).
+     * 
+     * @param sourceFile the lines belong to
+     * @param text of the file, terminators included
+     * @param offsets in text of each line, followed by the end of the text
+     * @param byteOffsets in the file of each line, followed by its size (or null if unknown)
+     * @param kinds of the lines
+     */
+    LineTable(SourceFile sourceFile, char[] text, int[] offsets, int[] byteOffsets, byte[] kinds) {
+        this.sourceFile = sourceFile;
+        this.text = text;
+        this.offsets = offsets;
+        this.byteOffsets = byteOffsets;
+        this.kinds = kinds;
+        this.isTerminated = true;
+        compileTemplates();
+    }
+    
+    private LineTable(SourceFile sourceFile, char[] text, int[] offsets, int[] byteOffsets,
+            int firstNumber, boolean isTerminated) {
+        this.sourceFile = sourceFile;
+        this.text = text;
+        this.offsets = offsets;
+        this.byteOffsets = byteOffsets;
+        this.firstNumber = firstNumber;
+        this.isTerminated = isTerminated;
+        this.kinds = new byte[offsets.length - 1];
+        lex();
+        compileTemplates();
+    }
+    
+    /**
+     * Creates a table of a single line, which
+     * is taken as it is (i.e. any line terminators
+     * are a part of its content).
+     * 
+     * @param sourceFile
+     * @param line
+     * @param number of the line
+     * @return
+     */
+    public static LineTable of(SourceFile sourceFile, String line, int number) {
+        return new LineTable(sourceFile, line.toCharArray(), new int[] { 0, line.length() }, null, number, false);
+    }
+    
+    public SourceFile getSourceFile() { return sourceFile; }
+    public int size() { return kinds.length; }
+    
+    public SourceLine get(int index) {
+        return new SourceLine(this, index);
+    }
+    
+    /**
+     * @return a view of the lines of this table
+     */
+    public List<SourceLine> asList() {
+        return new LineList();
+    }
+    
+    /**
+     * Records the size and mtime the file had
+     * when these lines were read from it.
+     * 
+     * @param length
+     * @param mtime
+     */
+    void setReadStamp(long length, long mtime) {
+        this.readLength = length;
+        this.readMtime = mtime;
+    }
+    
+    /**
+     * Determines whether the file still has the size
+     * and mtime it had when these lines were read, i.e.
+     * whether the byte offsets of the lines still point
+     * at the same bytes. This holds for the lines a
+     * Concatenation keeps, even after its SourceFile
+     * has been read again.
+     * 
+     * @return
+     */
+    public boolean isUnchangedOnDisk() {
+        if (readMtime < 0) { return false; }
+        File file = new File(sourceFile.getPathname().getAbsoluteLocation());
+        return ((file.length() == readLength) && (file.lastModified() == readMtime));
+    }
+    
+    long getReadLength() { return readLength; }
+    long getReadMtime() { return readMtime; }
+    char[] getText() { return text; }
+    int[] getOffsets() { return offsets; }
+    int[] getByteOffsets() { return byteOffsets; }
+    byte[] getKinds() { return kinds; }
+    
+    public int getNumber(int index) {
+        return (firstNumber + index);
+    }
+    
+    public int getKind(int index) {
+        return (kinds[index] & 0xFF);
+    }
+    
+    /**
+     * Marks the whole of the line as a comment.
+     * 
+     * @param index of the line
+     */
+    public void markAsComment(int index) {
+        SourceLineToken token = SourceLineLexer.lexAsComment(getContent(index), getToken(index));
+        kinds[index] = (byte) (token.getKind() | MARKED_AS_COMMENT);
+    }
+    
+    /**
+     * Lexes the line again, to get the offsets
+     * of its comment and directive arguments.
+     * 
+     * @param index
+     * @return
+     */
+    public SourceLineToken getToken(int index) {
+        CharSequence content = getContent(index);
+        SourceLineToken token = SourceLineLexer.lex(content);
+        return ((getKind(index) & MARKED_AS_COMMENT) != 0) ? SourceLineLexer.lexAsComment(content, token) : token;
+    }
+    
+    /**
+     * @param index
+     * @return view of the line, without its terminator
+     */
+    public CharSequence getContent(int index) {
+        int start = offsets[index];
+        return CharBuffer.wrap(text, start, (getContentEnd(index) - start));
+    }
+    
+    public String getLine(int index) {
+        int start = offsets[index];
+        return new String(text, start, (getContentEnd(index) - start));
+    }
+    
+    public String getTerminator(int index) {
+        int end = getContentEnd(index);
+        int length = offsets[index + 1] - end;
+        return (length == 0) ? "" : (length == 2) ? "\r\n" : (text[end] == '\n') ? "\n" : "\r";
+    }
+    
+    public long getByteOffset(int index) {
+        return (null == byteOffsets) ? -1 : byteOffsets[index];
+    }
+    
+    public int getByteLength(int index) {
+        return (null == byteOffsets) ? -1 : (byteOffsets[index + 1] - byteOffsets[index]);
+    }
+    
+    /**
+     * Determines whether the line references
+     * any constants.
+     * 
+     * @param index
+     * @return
+     */
+    public boolean hasConstants(int index) {
+        int end = getContentEnd(index) - 2;
+        for (int i = offsets[index]; i < end; i++) {
+            if ((text[i] == '<') && (text[i + 1] == '%') && (text[i + 2] == '=')) { return true; }
+        }
+        return false;
+    }
+    
+    /**
+     * @param index
+     * @return the template of the line, or null if
+     *         it does not reference any constants
+     */
+    public ConstantTemplate getTemplate(int index) {
+        return (null == templates) ? null : templates[index];
+    }
+    
+    /**
+     * @return true if any of the lines references constants
+     */
+    public boolean hasTemplates() {
+        return (null != templates);
+    }
+    
+    /**
+     * Determines whether the line would be rendered
+     * exactly as it was read, i.e. whether its bytes
+     * can be copied as they are from the SourceFile.
+     * 
+     * @param index
+     * @param lineSeparator the line would be rendered with
+     * @return
+     */
+    public boolean isVerbatim(int index, String lineSeparator) {
+        if (null == byteOffsets) { return false; }
+        
+        int start = offsets[index], end = getContentEnd(index);
+        int terminatorLength = offsets[index + 1] - end;
+        if (terminatorLength != lineSeparator.length()) { return false; }
+        for (int i = 0; i < terminatorLength; i++) {
+            if (text[end + i] != lineSeparator.charAt(i)) { return false; }
+        }
+        
+        return ((end == start) || !SourceLineLexer.isWhitespace(text[end - 1])) && (null == getTemplate(index));
+    }
+    
+    /**
+     * Appends the line, without its trailing
+     * whitespace, to the given StringBuilder.
+     * 
+     * @param index
+     * @param sb
+     * @return the StringBuilder
+     */
+    public StringBuilder appendTrimmedTo(int index, StringBuilder sb) {
+        int start = offsets[index];
+        int end = getContentEnd(index);
+        while ((end > start) && SourceLineLexer.isWhitespace(text[end - 1])) { end--; }
+        return sb.append(text, start, (end - start));
+    }
+    
+    public boolean contentEquals(int index, LineTable other, int otherIndex) {
+        int start = offsets[index], length = getContentEnd(index) - start;
+        int otherStart = other.offsets[otherIndex];
+        if (length != (other.getContentEnd(otherIndex) - otherStart)) { return false; }
+        
+        for (int i = 0; i < length; i++) {
+            if (text[start + i] != other.text[otherStart + i]) { return false; }
+        }
+        return true;
+    }
+    
+    public int contentHashCode(int index) {
+        int hash = 0;
+        for (int i = offsets[index], end = getContentEnd(index); i < end; i++) {
+            hash = 31 * hash + text[i];
+        }
+        return hash;
+    }
+    
+    private int getContentEnd(int index) {
+        int end = offsets[index + 1];
+        if (isTerminated) {
+            if ((end > offsets[index]) && (text[end - 1] == '\n')) { end--; }
+            if ((end > offsets[index]) && (text[end - 1] == '\r')) { end--; }
+        }
+        return end;
+    }
+    
+    /**
+     * Lexes every line and marks the
+     * lines of PDoc comments as comments.
+     */
+    private void lex() {
+        int commentStart = -1;
+        
+        for (int i = 0; i < kinds.length; i++) {
+            int kind = SourceLineLexer.lex(getContent(i)).getKind();
+            kinds[i] = (byte) kind;
+            
+            if ((commentStart < 0) && ((kind & SourceLineToken.BEGINS_PDOC_COMMENT) != 0)) {
+                commentStart = i;
+            }
+            
+            if ((kind & SourceLineToken.ENDS_MULTILINE_COMMENT) != 0) {
+                if ((commentStart >= 0) && ((kind & SourceLineToken.ENDS_PDOC_COMMENT) != 0)) {
+                    for (int j = commentStart; j <= i; j++) {
+                        markAsComment(j);
+                    }
+                }
+                commentStart = -1;
+            }
+        }
+    }
+    
+    /**
+     * Compiles the lines which reference constants. 
+     * The array is only allocated if there are any, 
+     * and lines with an unclosed "<%=" are left without
+     * a template, so that they are not compiled again.
+     */
+    private void compileTemplates() {
+        for (int i = 0; i < kinds.length; i++) {
+            if (!hasConstants(i)) { continue; }
+            
+            ConstantTemplate template = ConstantTemplate.compile(getLine(i));
+            if (null == template) { continue; }
+            if (null == templates) { templates = new ConstantTemplate[kinds.length]; }
+            templates[i] = template;
+        }
+    }
+    
+    /**
+     * List of flyweight SourceLines.
+     */
+    private class LineList extends AbstractList<SourceLine> implements RandomAccess {
+        @Override
+        public SourceLine get(int index) {
+            if ((index < 0) || (index >= size())) { throw new IndexOutOfBoundsException("index: " + index); }
+            return LineTable.this.get(index);
+        }
+        
+        @Override
+        public int size() {
+            return LineTable.this.size();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *  The LoadPathIndex maps the relative location of
+ *  every file beneath the directories of a load path
+ *  to the absolute location of the file, taken from the
+ *  directory which is searched first. Finding a file
+ *  in the load path then takes a single look-up.
+ * 
+ *  The directories are listed in parallel, and their
+ *  listings are kept until they are refreshed. The
+ *  index is built without holding any lock, and is
+ *  then published as a whole, so that look-ups are
+ *  never held up by the listing of the directories.
+ */
+public class LoadPathIndex {
+    private static Logger logger = LoggerFactory.getLogger(LoadPathIndex.class);
+    private Map<Pathname, Map<String, String>> listings;
+    private volatile Snapshot snapshot;
+    private int generation;
+    
+    public LoadPathIndex() {
+        this.listings = new ConcurrentHashMap<Pathname, Map<String, String>>();
+    }
+    
+    /**
+     * Builds the index of the given load path,
+     * listing the directories which have not
+     * been listed yet.
+     * 
+     * @param searchPath the load path, in the order it is searched in
+     */
+    public void build(Pathname[] searchPath) {
+        buildSnapshot(searchPath);
+    }
+    
+    /**
+     * Forgets all listings, so that the
+     * directories are listed again when
+     * the index is built next.
+     */
+    public synchronized void refresh() {
+        generation++;
+        listings.clear();
+        snapshot = null;
+    }
+    
+    /**
+     * Forgets the listing of a directory
+     * of the load path.
+     * 
+     * @param path
+     */
+    public synchronized void refresh(Pathname path) {
+        generation++;
+        listings.remove(path);
+        snapshot = null;
+    }
+    
+    /**
+     * @param searchPath
+     * @return true if the index has been built for the very same load path
+     */
+    public boolean isBuiltFor(Pathname[] searchPath) {
+        Snapshot current = snapshot;
+        return ((null != current) && (current.searchPath == searchPath));
+    }
+    
+    /**
+     * Determines whether a location can be looked
+     * up in the index, i.e. whether it is a relative
+     * location beneath the directories.
+     * 
+     * @param location
+     * @return
+     */
+    public static boolean isIndexable(String location) {
+        return (null != toKey(location));
+    }
+    
+    /**
+     * Finds the absolute location of a file.
+     * 
+     * @param location relative to the directories of the load path
+     * @return absolute location or null
+     */
+    public String find(String location) {
+        Snapshot current = snapshot;
+        String key = toKey(location);
+        return ((null == current) || (null == key)) ? null : current.index.get(key);
+    }
+    
+    /**
+     * Finds the absolute location of a file, building
+     * the index of the given load path first if needed.
+     * 
+     * @param searchPath the load path, in the order it is searched in
+     * @param location relative to the directories of the load path
+     * @return absolute location or null
+     */
+    public String find(Pathname[] searchPath, String location) {
+        Snapshot current = snapshot;
+        if ((null == current) || (current.searchPath != searchPath)) { current = buildSnapshot(searchPath); }
+        
+        String key = toKey(location);
+        return (null == key) ? null : current.index.get(key);
+    }
+    
+    public int size() {
+        Snapshot current = snapshot;
+        return (null == current) ? 0 : current.index.size();
+    }
+    
+    /**
+     * Lists the directories which have not been listed
+     * yet and merges the listings, without holding a lock.
+     * The result is only published if the index has not
+     * been refreshed in the meantime (the listings may
+     * be outdated then), but is returned either way.
+     */
+    private Snapshot buildSnapshot(Pathname[] searchPath) {
+        int started;
+        synchronized (this) {
+            started = generation;
+        }
+        
+        final List<ListingTask> tasks = new ArrayList<ListingTask>();
+        Map<Pathname, Map<String, String>> found = new HashMap<Pathname, Map<String, String>>();
+        for (Pathname path : searchPath) {
+            Map<String, String> listing = listings.get(path);
+            if (null != listing) {
+                found.put(path, listing);
+            } else if (!found.containsKey(path)) {
+                found.put(path, null);
+                tasks.add(new ListingTask(path));
+            }
+        }
+        
+        if (ForkJoinTask.inForkJoinPool()) {
+            // e.g. when SourceFiles are loaded in parallel
+            ForkJoinTask.invokeAll(tasks);
+        } else if (!tasks.isEmpty()) {
+            Workers.getPool().invoke(new RecursiveTask<Void>() {
+                private static final long serialVersionUID = 1L;
+                
+                @Override
+                protected Void compute() {
+                    invokeAll(tasks);
+                    return null;
+                }
+            });
+        }
+        for (ListingTask task : tasks) {
+            found.put(task.path, task.listing);
+        }
+        
+        Map<String, String> merged = new HashMap<String, String>();
+        for (int i = (searchPath.length - 1); i >= 0; i--) {
+            // the directories searched first are merged last, so that their files win
+            merged.putAll(found.get(searchPath[i]));
+        }
+        Snapshot built = new Snapshot(searchPath, merged);
+        
+        synchronized (this) {
+            if (started == generation) {
+                for (ListingTask task : tasks) {
+                    listings.put(task.path, task.listing);
+                }
+                snapshot = built;
+            }
+        }
+        return built;
+    }
+    
+    private static String toKey(String location) {
+        if (new File(location).isAbsolute()) { return null; }
+        
+        String key = FilenameUtils.normalizeNoEndSeparator(location);
+        if (null == key) { return null; }
+        
+        key = FilenameUtils.separatorsToUnix(key);
+        return (key.isEmpty() || key.startsWith("/") || key.startsWith("../")) ? null : key;
+    }
+    
+    /**
+     * Lists all files beneath a directory of the load path.
+     */
+    private class ListingTask extends RecursiveTask<Void> {
+        private static final long serialVersionUID = 1L;
+        private Pathname path;
+        private Map<String, String> listing;
+        
+        public ListingTask(Pathname path) {
+            this.path = path;
+        }
+        
+        @Override
+        protected Void compute() {
+            final Map<String, String> listing = new HashMap<String, String>();
+            Path location = Paths.get(path.getAbsoluteLocation());
+            final Path root = Files.isRegularFile(location) ? location.getParent() : location;
+            
+            try {
+                if (Files.isDirectory(root)) {
+                    Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                            new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            if (attrs.isRegularFile()) {
+                                String key = FilenameUtils.separatorsToUnix(root.relativize(file).toString());
+                                listing.put(key, file.toString());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                        
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                            // e.g. a loop of symbolic links
+                            logger.warn(String.format("couldn't index %s: %s", file, ex.getMessage()));
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                }
+            } catch (IOException ex) {
+                logger.warn(String.format("couldn't index %s: %s", path, ex.getMessage()));
+            }
+            
+            this.listing = listing;
+            return null;
+        }
+    }
+    
+    /**
+     * An index, along with the load path
+     * it has been built for.
+     */
+    private static class Snapshot {
+        private final Pathname[] searchPath;
+        private final Map<String, String> index;
+        
+        public Snapshot(Pathname[] searchPath, Map<String, String> index) {
+            this.searchPath = searchPath;
+            this.index = index;
+        }
+    }
+}
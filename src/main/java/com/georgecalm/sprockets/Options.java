@@ -9,6 +9,15 @@ public class Options {
     private List<SourceFile> sourceFiles = Collections.emptyList();
     private Boolean expandPaths = null;
     private Boolean stripComments = null;
+    private String encoding = null;
+    private Boolean parallelRequire = null;
+    private String parseCache = null;
+    private Long parseCacheSize = null;
+    private Boolean indexLoadPath = null;
+    private String assetRoot = null;
+    private Integer installParallelism = null;
+    private AssetInstaller.Mode installMode = null;
+    private Boolean minify = null;
 
     public String getRoot() {
         return root;
@@ -50,6 +59,78 @@ public class Options {
         this.stripComments = stripComments;
     }
 
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public Boolean isParallelRequire() {
+        return parallelRequire;
+    }
+
+    public void setParallelRequire(Boolean parallelRequire) {
+        this.parallelRequire = parallelRequire;
+    }
+
+    public String getParseCache() {
+        return parseCache;
+    }
+
+    public void setParseCache(String parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    public Long getParseCacheSize() {
+        return parseCacheSize;
+    }
+
+    public void setParseCacheSize(Long parseCacheSize) {
+        this.parseCacheSize = parseCacheSize;
+    }
+
+    public Boolean isIndexLoadPath() {
+        return indexLoadPath;
+    }
+
+    public void setIndexLoadPath(Boolean indexLoadPath) {
+        this.indexLoadPath = indexLoadPath;
+    }
+
+    public String getAssetRoot() {
+        return assetRoot;
+    }
+
+    public void setAssetRoot(String assetRoot) {
+        this.assetRoot = assetRoot;
+    }
+
+    public Integer getInstallParallelism() {
+        return installParallelism;
+    }
+
+    public void setInstallParallelism(Integer installParallelism) {
+        this.installParallelism = installParallelism;
+    }
+
+    public AssetInstaller.Mode getInstallMode() {
+        return installMode;
+    }
+
+    public void setInstallMode(AssetInstaller.Mode installMode) {
+        this.installMode = installMode;
+    }
+
+    public Boolean isMinify() {
+        return minify;
+    }
+
+    public void setMinify(Boolean minify) {
+        this.minify = minify;
+    }
+
     public Options merge(Options userOptions) {
         Options merged = new Options();
 
@@ -58,6 +139,15 @@ public class Options {
         merged.setSourceFiles(userOptions.getSourceFiles().isEmpty() ? userOptions.getSourceFiles() : this.sourceFiles);
         merged.setExpandPaths((null != userOptions.isExpandPaths()) ? userOptions.isExpandPaths() : this.expandPaths);
         merged.setStripComments((null != userOptions.isStripComments()) ? userOptions.isStripComments() : this.stripComments);
+        merged.setEncoding((null != userOptions.getEncoding()) ? userOptions.getEncoding() : this.encoding);
+        merged.setParallelRequire((null != userOptions.isParallelRequire()) ? userOptions.isParallelRequire() : this.parallelRequire);
+        merged.setParseCache((null != userOptions.getParseCache()) ? userOptions.getParseCache() : this.parseCache);
+        merged.setParseCacheSize((null != userOptions.getParseCacheSize()) ? userOptions.getParseCacheSize() : this.parseCacheSize);
+        merged.setIndexLoadPath((null != userOptions.isIndexLoadPath()) ? userOptions.isIndexLoadPath() : this.indexLoadPath);
+        merged.setAssetRoot((null != userOptions.getAssetRoot()) ? userOptions.getAssetRoot() : this.assetRoot);
+        merged.setInstallParallelism((null != userOptions.getInstallParallelism()) ? userOptions.getInstallParallelism() : this.installParallelism);
+        merged.setInstallMode((null != userOptions.getInstallMode()) ? userOptions.getInstallMode() : this.installMode);
+        merged.setMinify((null != userOptions.isMinify()) ? userOptions.isMinify() : this.minify);
 
         return merged;
     }
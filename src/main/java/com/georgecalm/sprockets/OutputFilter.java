@@ -0,0 +1,37 @@
+package com.georgecalm.sprockets;
+
+/**
+ *  An OutputFilter post-processes the lines of a
+ *  Concatenation as they are written out (e.g. to 
+ *  minify them), one line after the other, so that
+ *  the whole output never has to be in one string.
+ */
+public interface OutputFilter {
+    /**
+     * @return a new pass of the filter over one output
+     */
+    Pass begin();
+    
+    /**
+     * A pass over one output, which keeps the state
+     * it needs from one line to the next (e.g. when
+     * a comment spans several lines).
+     */
+    interface Pass {
+        /**
+         * Filters a line, appending what is left of it.
+         * 
+         * @param line including its line separator
+         * @param out
+         */
+        void filter(CharSequence line, StringBuilder out);
+        
+        /**
+         * Appends whatever is left once all lines
+         * have been filtered.
+         * 
+         * @param out
+         */
+        void finish(StringBuilder out);
+    }
+}
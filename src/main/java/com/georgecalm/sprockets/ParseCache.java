@@ -0,0 +1,278 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *  The ParseCache keeps the LineTables of SourceFiles
+ *  in a directory, so that a new process does not have
+ *  to decode and lex the files which have not changed.
+ * 
+ *  There is one entry per file and charset. An entry
+ *  holds the size and mtime of the file it was read
+ *  from, and is only used while the file still has them.
+ *  The least recently used entries are removed once
+ *  the entries take more than the maximum size.
+ */
+public class ParseCache {
+    private static Logger logger = LoggerFactory.getLogger(ParseCache.class);
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    private static final int MAGIC = 0x53504331; // "SPC1"
+    private static final String SUFFIX = ".lines";
+    
+    private File directory;
+    private long maxSize;
+    private long size = -1;
+    
+    public ParseCache(File directory) { this(directory, DEFAULT_MAX_SIZE); }
+    
+    /**
+     * Creates a cache in the given directory,
+     * which is created if it does not exist.
+     * 
+     * @param directory
+     * @param maxSize of all entries, in bytes
+     */
+    public ParseCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+    
+    public File getDirectory() { return directory; }
+    public long getMaxSize() { return maxSize; }
+    
+    /**
+     * Retrieves the lines of a SourceFile,
+     * if the file has not changed since they
+     * were put in the cache.
+     * 
+     * @param sourceFile
+     * @param file the SourceFile is read from
+     * @param charset the SourceFile is read with
+     * @return table of the lines or null
+     */
+    public LineTable get(SourceFile sourceFile, File file, Charset charset) {
+        File entry = getEntry(file, charset);
+        if (!entry.isFile()) { return null; }
+        
+        try {
+            ByteBuffer bytes = readFully(entry);
+            if ((bytes.getInt() != MAGIC) || (bytes.getLong() != file.length())
+                    || (bytes.getLong() != file.lastModified())
+                    || !getString(bytes).equals(file.getAbsolutePath())
+                    || !getString(bytes).equals(charset.name())) {
+                return null;
+            }
+            
+            int count = bytes.getInt();
+            int[] offsets = getInts(bytes, (count + 1));
+            int[] byteOffsets = (bytes.get() != 0) ? getInts(bytes, (count + 1)) : null;
+            byte[] kinds = new byte[count];
+            bytes.get(kinds);
+            char[] text = new char[offsets[count]];
+            bytes.asCharBuffer().get(text);
+            
+            entry.setLastModified(System.currentTimeMillis());
+            return new LineTable(sourceFile, text, offsets, byteOffsets, kinds);
+        } catch (IOException | RuntimeException ex) {
+            // a broken entry is read from the file again
+            logger.warn(String.format("couldn't read cached lines of %s: %s", file, ex.getMessage()));
+            return null;
+        }
+    }
+    
+    /**
+     * Puts the lines of a SourceFile in the cache.
+     * 
+     * @param file the lines were read from
+     * @param charset the lines were read with
+     * @param lines
+     * @param length of the file when it was read
+     * @param mtime of the file when it was read
+     */
+    public void put(File file, Charset charset, LineTable lines, long length, long mtime) {
+        File entry = getEntry(file, charset);
+        
+        try {
+            ByteBuffer bytes = write(file, charset, lines, length, mtime);
+            
+            directory.mkdirs();
+            File temp = File.createTempFile(entry.getName(), ".tmp", directory);
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    FileChannel channel = out.getChannel();
+                    while (bytes.hasRemaining()) { channel.write(bytes); }
+                } finally {
+                    out.close();
+                }
+                
+                long replaced = entry.length();
+                moveAtomically(temp, entry);
+                added(bytes.capacity() - replaced);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException ex) {
+            logger.warn(String.format("couldn't cache lines of %s: %s", file, ex.getMessage()));
+        }
+    }
+    
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        for (File entry : listEntries()) {
+            entry.delete();
+        }
+        size = 0;
+    }
+    
+    /**
+     * @return size of all entries, in bytes
+     */
+    public synchronized long getSize() {
+        if (size < 0) {
+            size = 0;
+            for (File entry : listEntries()) {
+                size += entry.length();
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Accounts for a change of the size of
+     * the entries, and removes the least recently
+     * used ones if they take too much space.
+     */
+    private synchronized void added(long bytes) {
+        size = getSize() + bytes;
+        if (size <= maxSize) { return; }
+        
+        File[] entries = listEntries();
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified(), m2 = f2.lastModified();
+                return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+            }
+        });
+        
+        // down to three quarters, so that not every put evicts
+        for (int i = 0; (i < entries.length) && (size > (maxSize / 4 * 3)); i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) { size -= length; }
+        }
+    }
+    
+    private File[] listEntries() {
+        File[] entries = directory.listFiles();
+        if (null == entries) { return new File[0]; }
+        
+        int count = 0;
+        for (File entry : entries) {
+            if (entry.getName().endsWith(SUFFIX)) { entries[count++] = entry; }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+    
+    private File getEntry(File file, Charset charset) {
+        return new File(directory, digest(file.getAbsolutePath() + File.pathSeparator + charset.name()) + SUFFIX);
+    }
+    
+    private static ByteBuffer write(File file, Charset charset, LineTable lines, long length, long mtime) {
+        int count = lines.size();
+        int[] offsets = lines.getOffsets(), byteOffsets = lines.getByteOffsets();
+        String path = file.getAbsolutePath(), charsetName = charset.name();
+        
+        int capacity = 4 + 8 + 8 + (4 + path.length() * 2) + (4 + charsetName.length() * 2) + 4
+                + ((count + 1) * 4) + 1 + ((null != byteOffsets) ? ((count + 1) * 4) : 0)
+                + count + (offsets[count] * 2);
+        ByteBuffer bytes = ByteBuffer.allocate(capacity);
+        
+        bytes.putInt(MAGIC).putLong(length).putLong(mtime);
+        putString(bytes, path);
+        putString(bytes, charsetName);
+        bytes.putInt(count);
+        putInts(bytes, offsets);
+        bytes.put((byte) ((null != byteOffsets) ? 1 : 0));
+        if (null != byteOffsets) { putInts(bytes, byteOffsets); }
+        bytes.put(lines.getKinds());
+        bytes.asCharBuffer().put(lines.getText(), 0, offsets[count]);
+        
+        bytes.clear();
+        return bytes;
+    }
+    
+    private static ByteBuffer readFully(File entry) throws IOException {
+        FileInputStream in = new FileInputStream(entry);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining() && (channel.read(bytes) >= 0)) {
+                // keep reading until the buffer is full or the file ends
+            }
+            bytes.flip();
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void putString(ByteBuffer bytes, String str) {
+        bytes.putInt(str.length());
+        for (int i = 0; i < str.length(); i++) { bytes.putChar(str.charAt(i)); }
+    }
+    
+    private static String getString(ByteBuffer bytes) {
+        char[] chars = new char[bytes.getInt()];
+        for (int i = 0; i < chars.length; i++) { chars[i] = bytes.getChar(); }
+        return new String(chars);
+    }
+    
+    private static void putInts(ByteBuffer bytes, int[] ints) {
+        bytes.asIntBuffer().put(ints);
+        bytes.position(bytes.position() + (ints.length * 4));
+    }
+    
+    private static int[] getInts(ByteBuffer bytes, int count) {
+        int[] ints = new int[count];
+        bytes.asIntBuffer().get(ints);
+        bytes.position(bytes.position() + (count * 4));
+        return ints;
+    }
+    
+    private static String digest(String str) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(str.getBytes(Charset.forName("UTF-8")));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) { sb.append(String.format("%02x", b)); }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -15,10 +15,12 @@ public class Pathname {
     public enum PathKind {FILE, DIRECTORY}
     private Environment environment;
     private String absoluteLocation;
+    private int hash;
     
     public Pathname(Environment environment, String absoluteLocation) {
         this.environment = environment;
         this.absoluteLocation = FilenameUtils.normalize((new File(absoluteLocation)).getAbsolutePath());
+        this.hash = 31 * 17 + this.absoluteLocation.hashCode();
     }
     
     public Environment getEnvironment() { return environment; }
@@ -45,16 +47,16 @@ public class Pathname {
      */
     public Pathname find(String location, PathKind kind) {
         File loc = new File(absoluteLocation);
-        String absLoc = (loc.isFile()) ? loc.getParent() : loc.getAbsolutePath();
+        String absLoc = (loc.isFile()) ? loc.getParent() : absoluteLocation;
         
+        // isFile() and isDirectory() are false for files that do not exist
         File file = new File(absLoc + File.separator + location);
-        boolean isValid = (file.exists() && ((kind == PathKind.FILE && file.isFile()) || 
-                (kind == PathKind.DIRECTORY && file.isDirectory())));
-        return isValid ? (new Pathname(environment, file.getAbsolutePath())) : null;
+        boolean isValid = ((kind == PathKind.FILE) ? file.isFile() : file.isDirectory());
+        return isValid ? getPathname(file.getAbsolutePath()) : null;
     }
     
     public Pathname getParentPathname() {
-        Pathname pn = new Pathname(environment, (new File(absoluteLocation)).getParent());
+        Pathname pn = getPathname((new File(absoluteLocation)).getParent());
         return pn;
     }
     
@@ -65,7 +67,15 @@ public class Pathname {
      * @return
      */
     public SourceFile getSourceFile() {
-        return new SourceFile(this.environment, this);
+        return (null != environment) ? environment.getSourceFile(this) : new SourceFile(null, this);
+    }
+    
+    /**
+     * Retrieves the Pathname of the Environment
+     * for a location (see Environment.getPathname()).
+     */
+    private Pathname getPathname(String location) {
+        return (null != environment) ? environment.getPathname(location) : new Pathname(null, location);
     }
     
     /**
@@ -84,14 +94,16 @@ public class Pathname {
     public boolean equals(Object otherPathname) {
         if (!(otherPathname instanceof Pathname)) { return false; }
         Pathname pathname = (Pathname) otherPathname;
-        return (absoluteLocation.equals(pathname.getAbsoluteLocation()));
+        return ((hash == pathname.hash) && absoluteLocation.equals(pathname.getAbsoluteLocation()));
     }
     
+    /**
+     * The hash is computed once, as Pathnames
+     * are looked up in sets and maps a lot.
+     */
     @Override
     public int hashCode() {
-        int result = 17;
-        result = 31 * result + absoluteLocation.hashCode();
-        return result;
+        return hash;
     }
     
     /**
@@ -2,8 +2,19 @@ package com.georgecalm.sprockets;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.georgecalm.sprockets.Pathname.PathKind;
 
@@ -18,11 +29,18 @@ import com.georgecalm.sprockets.Pathname.PathKind;
  * <em>load path</em>. 
  */
 public class Preprocessor {
+    private static Logger logger = LoggerFactory.getLogger(Preprocessor.class);
     private Environment environment;
     private Concatenation concatenation;
-    private List<SourceFile> sourceFiles;
-    private List<Pathname> assetPaths;
+    private Set<SourceFile> sourceFiles;
+    private Set<Pathname> assetPaths;
+    private DependencyGraph dependencyGraph;
+    private List<SourceFile> requiredSourceFiles;
+    private List<Segment> segments;
+    private Map<Pathname, List<Segment>> segmentsBySourceFile;
     private Options options;
+    private ConcurrentMap<Pathname, SourceFile> loadedSourceFiles;
+    private List<OutputFilter> filters;
     private enum KindOfRequire { RELATIVE_REQUIRE, REQUIRE }
     
     /**
@@ -35,45 +53,332 @@ public class Preprocessor {
     
     public Preprocessor(Environment environment, Options options) {
         this.environment = environment;
-        this.concatenation = new Concatenation();
-        this.sourceFiles = new LinkedList<SourceFile>();
-        this.assetPaths = new LinkedList<Pathname>();
+        this.filters = new ArrayList<OutputFilter>();
+        this.concatenation = newConcatenation();
+        this.sourceFiles = new LinkedHashSet<SourceFile>();
+        this.assetPaths = new LinkedHashSet<Pathname>();
+        this.dependencyGraph = new DependencyGraph();
+        this.requiredSourceFiles = new ArrayList<SourceFile>();
+        this.segments = new ArrayList<Segment>();
+        this.segmentsBySourceFile = new HashMap<Pathname, List<Segment>>();
         this.options = options;
+        this.loadedSourceFiles = new ConcurrentHashMap<Pathname, SourceFile>();
+        if (isMinify()) { addFilter(new JavaScriptMinifier()); }
     }
     
     public Environment getEnvironment() { return environment; }
     public Concatenation getConcatenation() { return concatenation; }
-    public List<SourceFile> getSourceFiles() {  return sourceFiles; }
-    public List<Pathname> getAssetPaths() { return assetPaths; }
+    
+    /**
+     * Adds a filter the concatenation passes
+     * through when it is written out, now and
+     * whenever it is built again.
+     * 
+     * @param filter
+     */
+    public void addFilter(OutputFilter filter) {
+        filters.add(filter);
+        concatenation.addFilter(filter);
+    }
+    
+    /**
+     * @return the required SourceFiles, in the order they were required
+     */
+    public List<SourceFile> getSourceFiles() { return new ArrayList<SourceFile>(sourceFiles); }
+    
+    /**
+     * @return the provided asset paths, in the order they were provided
+     */
+    public List<Pathname> getAssetPaths() { return new ArrayList<Pathname>(assetPaths); }
+    
+    /**
+     * @return the graph of the requires and provides followed so far
+     */
+    public DependencyGraph getDependencyGraph() { return dependencyGraph; }
     
     /**
      * Require all SourceFiles and provide
      * all assets which are specified in 
      * the lines of the given SourceFile.
      * 
-     * This method is recursive.
+     * When parallel-require is set in the options,
+     * all SourceFiles reachable from the given one 
+     * are first read and lexed in parallel (see load()).
+     * The requires are then followed in order, just
+     * as they are without it.
      * 
      * @param sourceFile
      * @throws FileNotFoundException
      */
     public void require(SourceFile sourceFile) throws FileNotFoundException {
         if (sourceFiles.contains(sourceFile)) { return; }
-        sourceFiles.add(sourceFile);
+        requiredSourceFiles.add(sourceFile);
+        
+        if (isParallelRequire()) {
+            try {
+                load(sourceFile);
+                requireLoaded(sourceFile);
+            } finally {
+                loadedSourceFiles.clear();
+            }
+        } else {
+            requireLoaded(sourceFile);
+        }
+    }
+    
+    /**
+     * Brings the concatenation up to date with the
+     * SourceFiles that were required, reading again
+     * only the ones which have changed (by size or
+     * mtime) since they were read.
+     * 
+     * When the requires and provides of the changed
+     * SourceFiles are the same as before, their new
+     * lines are spliced into the places of the old 
+     * ones. Otherwise, the required SourceFiles are 
+     * required again, taking the unchanged ones as 
+     * they were read.
+     * 
+     * @return true if any of the SourceFiles had changed
+     * @throws FileNotFoundException
+     */
+    public boolean rebuild() throws FileNotFoundException {
+        List<SourceFile> modified = new ArrayList<SourceFile>();
+        for (SourceFile sourceFile : sourceFiles) {
+            if (isOutdated(sourceFile)) { modified.add(sourceFile); }
+        }
+        if (modified.isEmpty()) { return false; }
+        
+        boolean isSpliced = true;
+        for (SourceFile sourceFile : modified) {
+            // another Preprocessor may have read the file again already
+            invalidateIfModified(sourceFile);
+            isSpliced = isSpliced && splice(sourceFile);
+        }
+        
+        if (isSpliced) {
+            concatenation = newConcatenation();
+            for (Segment segment : segments) {
+                segment.recordTo(concatenation);
+            }
+        } else {
+            requireAgain();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads and lexes the given SourceFile and all 
+     * SourceFiles it requires (transitively) in parallel,
+     * so that they need not be read when they are required.
+     * 
+     * Requires which can not be found are skipped here:
+     * they are reported when they are actually required.
+     * 
+     * @param sourceFile
+     */
+    public void load(SourceFile sourceFile) {
+        loadedSourceFiles.putIfAbsent(sourceFile.getPathname(), sourceFile);
+        
+        try {
+            Workers.getPool().invoke(new LoadTask(loadedSourceFiles.get(sourceFile.getPathname())));
+        } catch (RuntimeException ex) {
+            // whatever could not be loaded is read when it is required
+            logger.warn(String.format("couldn't load files required by %s: %s", sourceFile, ex.getMessage()));
+        }
+    }
+    
+    /**
+     * Require all SourceFiles and provide all
+     * assets which are specified in the lines
+     * of the given SourceFile, taking the required
+     * SourceFiles from the loaded ones if possible.
+     * 
+     * This method is recursive.
+     * 
+     * @param sourceFile
+     * @throws FileNotFoundException
+     */
+    private void requireLoaded(SourceFile sourceFile) throws FileNotFoundException {
+        if (!sourceFiles.add(sourceFile)) { return; }
+        dependencyGraph.addNode(sourceFile);
+        invalidateIfModified(sourceFile);
         
         List<SourceLine> lines;
         lines = sourceFile.getSourceLines();
         
+        List<Segment> fileSegments = new ArrayList<Segment>();
+        segmentsBySourceFile.put(sourceFile.getPathname(), fileSegments);
+        Segment segment = beginSegment(sourceFile, fileSegments);
+        
         for (SourceLine sourceLine : lines) {
             if (sourceLine.isRequire()) {
                 requireFromSourceLine(sourceLine);
+                segment = beginSegment(sourceFile, fileSegments);
             } else if (sourceLine.isProvide()) {
                 provideFromSourceLine(sourceLine);
             } else {
-                recordSourceLine(sourceLine);
+                recordSourceLine(sourceLine, segment);
             }
         }
     }
     
+    /**
+     * Reads a changed SourceFile again and puts its
+     * lines into the segments of its old lines. This
+     * is only possible if it requires and provides
+     * the same pathnames as before.
+     * 
+     * @param sourceFile
+     * @return true if the SourceFile was spliced
+     */
+    private boolean splice(SourceFile sourceFile) {
+        LineTable table;
+        try {
+            table = sourceFile.getLineTable();
+        } catch (FileNotFoundException ex) {
+            return false;
+        }
+        
+        List<DependencyGraph.Edge> edges = new ArrayList<DependencyGraph.Edge>();
+        List<Segment> fileSegments = new ArrayList<Segment>();
+        Segment segment = new Segment(table);
+        fileSegments.add(segment);
+        
+        for (SourceLine sourceLine : table.asList()) {
+            if (sourceLine.isRequire()) {
+                Pathname pname = getPathnameFinderFrom(sourceLine);
+                if (null == pname) { return false; }
+                edges.add(new DependencyGraph.Edge(DependencyGraph.EdgeKind.REQUIRE, sourceLine, pname));
+                segment = new Segment(table);
+                fileSegments.add(segment);
+            } else if (sourceLine.isProvide()) {
+                Pathname assetPath = getAssetPathFrom(sourceLine);
+                if (null != assetPath) { edges.add(new DependencyGraph.Edge(DependencyGraph.EdgeKind.PROVIDE, sourceLine, assetPath)); }
+            } else if (!(sourceLine.isComment() && isStipComments())) {
+                segment.add(sourceLine.getIndex());
+            }
+        }
+        
+        if (!haveSameTargets(dependencyGraph.getEdgesFrom(sourceFile), edges)) { return false; }
+        
+        List<Segment> oldSegments = segmentsBySourceFile.get(sourceFile.getPathname());
+        for (int i = 0; i < oldSegments.size(); i++) {
+            oldSegments.get(i).replaceWith(fileSegments.get(i));
+        }
+        
+        dependencyGraph.removeEdgesFrom(sourceFile);
+        for (DependencyGraph.Edge edge : edges) {
+            dependencyGraph.addEdge(edge.getKind(), edge.getOrigin(), edge.getTo());
+        }
+        
+        return true;
+    }
+    
+    /**
+     * SourceFiles are shared by all Preprocessors of
+     * an Environment, so the lines of a SourceFile may 
+     * have been read before the file last changed.
+     * 
+     * @param sourceFile
+     */
+    private static void invalidateIfModified(SourceFile sourceFile) {
+        if (sourceFile.isModifiedSinceRead()) { sourceFile.invalidate(); }
+    }
+    
+    /**
+     * Determines whether the lines this Preprocessor
+     * holds of a SourceFile are outdated: either the
+     * file has changed since it was read, or it has been
+     * read again since (e.g. by another Preprocessor of
+     * the same Environment, which shares the SourceFile).
+     * 
+     * @param sourceFile
+     * @return
+     * @throws FileNotFoundException
+     */
+    private boolean isOutdated(SourceFile sourceFile) throws FileNotFoundException {
+        if (sourceFile.isModifiedSinceRead()) { return true; }
+        
+        LineTable held = getHeldLineTable(sourceFile);
+        return ((null != held) && (held != sourceFile.getLineTable()));
+    }
+    
+    /**
+     * @param sourceFile
+     * @return the lines the concatenation was built from of 
+     *         the given SourceFile, which may be older than
+     *         the ones it holds now, or null if it was not required
+     */
+    LineTable getHeldLineTable(SourceFile sourceFile) {
+        List<Segment> held = segmentsBySourceFile.get(sourceFile.getPathname());
+        return ((null != held) && !held.isEmpty()) ? held.get(0).table : null;
+    }
+    
+    /**
+     * Requires all of the required SourceFiles
+     * again, from scratch (e.g. when files were
+     * added to the load path, which may be found
+     * instead of the ones required before). The
+     * SourceFiles which have already been read
+     * are not read again, unless they have changed.
+     * 
+     * @throws FileNotFoundException
+     */
+    public void requireAgain() throws FileNotFoundException {
+        for (SourceFile sourceFile : sourceFiles) {
+            loadedSourceFiles.put(sourceFile.getPathname(), sourceFile);
+        }
+        
+        concatenation = newConcatenation();
+        sourceFiles.clear();
+        assetPaths.clear();
+        dependencyGraph = new DependencyGraph();
+        segments.clear();
+        segmentsBySourceFile.clear();
+        
+        try {
+            for (SourceFile sourceFile : requiredSourceFiles) {
+                requireLoaded(sourceFile);
+            }
+        } finally {
+            loadedSourceFiles.clear();
+        }
+    }
+    
+    /**
+     * Starts a new segment of the lines of 
+     * the given SourceFile, i.e. the lines
+     * between two of its requires.
+     * 
+     * @param sourceFile
+     * @param fileSegments the segments of the SourceFile so far
+     * @return
+     * @throws FileNotFoundException
+     */
+    private Segment beginSegment(SourceFile sourceFile, List<Segment> fileSegments) throws FileNotFoundException {
+        Segment segment = new Segment(sourceFile.getLineTable());
+        segments.add(segment);
+        fileSegments.add(segment);
+        return segment;
+    }
+    
+    /**
+     * Determines whether both lists of 
+     * edges are of the same kinds and point
+     * at the same pathnames, in the same order.
+     */
+    private static boolean haveSameTargets(List<DependencyGraph.Edge> edges, List<DependencyGraph.Edge> otherEdges) {
+        if (edges.size() != otherEdges.size()) { return false; }
+        
+        for (int i = 0; i < edges.size(); i++) {
+            DependencyGraph.Edge edge = edges.get(i), otherEdge = otherEdges.get(i);
+            if ((edge.getKind() != otherEdge.getKind()) || !edge.getTo().equals(otherEdge.getTo())) { return false; }
+        }
+        return true;
+    }
+    
     /**
      * Provide an asset specified
      * by the given path-name.
@@ -81,7 +386,7 @@ public class Preprocessor {
      * @param assetPath
      */
     public void provide(Pathname assetPath) {
-        if ((null == assetPath) || assetPath.toString().isEmpty() || assetPaths.contains(assetPath)) { return; }
+        if ((null == assetPath) || assetPath.toString().isEmpty()) { return; }
         assetPaths.add(assetPath);
     }
     
@@ -94,7 +399,10 @@ public class Preprocessor {
      * @throws FileNotFoundException
      */
     private void requireFromSourceLine(SourceLine line) throws FileNotFoundException {
-        require(getPathnameFrom(line).getSourceFile());
+        Pathname pname = getPathnameFrom(line);
+        dependencyGraph.addEdge(DependencyGraph.EdgeKind.REQUIRE, line, pname);
+        SourceFile loaded = loadedSourceFiles.get(pname);
+        requireLoaded((null != loaded) ? loaded : pname.getSourceFile());
     }
 
     /**
@@ -104,7 +412,9 @@ public class Preprocessor {
      * @param line
      */
     private void provideFromSourceLine(SourceLine line) {
-        provide(getAssetPathFrom(line));
+        Pathname assetPath = getAssetPathFrom(line);
+        if (null != assetPath) { dependencyGraph.addEdge(DependencyGraph.EdgeKind.PROVIDE, line, assetPath); }
+        provide(assetPath);
     }
     
     /**
@@ -112,10 +422,12 @@ public class Preprocessor {
      * current concatenation.
      * 
      * @param line
+     * @param segment the line belongs to
      */
-    private void recordSourceLine(SourceLine line) {
+    private void recordSourceLine(SourceLine line, Segment segment) {
         if (!(line.isComment() && isStipComments())) {
             concatenation.record(line);
+            segment.add(line.getIndex());
         }
     }
     
@@ -134,6 +446,38 @@ public class Preprocessor {
         return ((null == isc) || isc);
     }
     
+    private Concatenation newConcatenation() {
+        Concatenation concatenation = new Concatenation(environment.getCharset());
+        for (OutputFilter filter : filters) {
+            concatenation.addFilter(filter);
+        }
+        return concatenation;
+    }
+    
+    /**
+     * Determines whether the concatenation
+     * should be minified (see JavaScriptMinifier).
+     * Defaults to false.
+     * 
+     * @return
+     */
+    private boolean isMinify() {
+        Boolean im = options.isMinify();
+        return ((null != im) && im);
+    }
+    
+    /**
+     * Determines whether the SourceFiles
+     * should be loaded in parallel before
+     * they are required. Defaults to false.
+     * 
+     * @return
+     */
+    private boolean isParallelRequire() {
+        Boolean ipr = options.isParallelRequire();
+        return ((null != ipr) && ipr);
+    }
+    
     /**
      * Retrieves a pathname from the
      * provided SourceLine.
@@ -230,7 +574,7 @@ public class Preprocessor {
         int idxOfSuf = locName.indexOf(suffix);
         locName = locName.substring(0, ((idxOfSuf == -1) ? locName.length() : idxOfSuf));
         
-        return (((null == locParent) ? "" : locParent) + locName + suffix);
+        return (((null == locParent) ? "" : (locParent + File.separator)) + locName + suffix);
     }
     
     /**
@@ -256,4 +600,83 @@ public class Preprocessor {
         String file = (new File(getRequireLocationFrom(line))).getName();
         throw new FileNotFoundException(String.format("can't find file for %s %s (%s)", kind, file, line.inspect()));
     }
+    
+    /**
+     * Reads and lexes one SourceFile and forks
+     * a task for every SourceFile it requires which
+     * has not been loaded by another task yet.
+     */
+    private class LoadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private SourceFile sourceFile;
+        
+        public LoadTask(SourceFile sourceFile) {
+            this.sourceFile = sourceFile;
+        }
+        
+        @Override
+        protected void compute() {
+            LineTable table;
+            try {
+                invalidateIfModified(sourceFile);
+                table = sourceFile.getLineTable();
+            } catch (FileNotFoundException ex) {
+                return;
+            }
+            
+            List<LoadTask> tasks = new ArrayList<LoadTask>();
+            for (int i = 0; i < table.size(); i++) {
+                if ((table.getKind(i) & SourceLineToken.REQUIRE) == 0) { continue; }
+                
+                Pathname pname = getPathnameFinderFrom(table.get(i));
+                if ((null == pname) || (null != loadedSourceFiles.get(pname))) { continue; }
+                
+                SourceFile required = pname.getSourceFile();
+                if (null == loadedSourceFiles.putIfAbsent(pname, required)) {
+                    tasks.add(new LoadTask(required));
+                }
+            }
+            
+            invokeAll(tasks);
+        }
+    }
+    
+    /**
+     * The lines of a SourceFile which were recorded
+     * between two of its requires (as ranges of 
+     * lines of its LineTable). The concatenation
+     * is made of the segments of all SourceFiles.
+     */
+    private static class Segment {
+        private LineTable table;
+        private int[] ranges = new int[4];
+        private int count;
+        
+        public Segment(LineTable table) {
+            this.table = table;
+        }
+        
+        public void add(int index) {
+            if ((count > 0) && (ranges[count - 1] == index)) {
+                ranges[count - 1]++;
+                return;
+            }
+            
+            if (count == ranges.length) { ranges = Arrays.copyOf(ranges, (count * 2)); }
+            ranges[count++] = index;
+            ranges[count++] = index + 1;
+        }
+        
+        public void replaceWith(Segment segment) {
+            table = segment.table;
+            ranges = segment.ranges;
+            count = segment.count;
+        }
+        
+        public void recordTo(Concatenation concatenation) {
+            for (int i = 0; i < count; i += 2) {
+                concatenation.record(table, ranges[i], ranges[i + 1]);
+            }
+        }
+    }
 }
@@ -1,9 +1,16 @@
 package com.georgecalm.sprockets;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
 
 public class Secretary {
     private static final Options DEFAULT_OPTIONS = new Options();
@@ -13,6 +20,13 @@ public class Secretary {
         DEFAULT_OPTIONS.setSourceFiles(new ArrayList<SourceFile>());
         DEFAULT_OPTIONS.setExpandPaths(true);
         DEFAULT_OPTIONS.setStripComments(true);
+        DEFAULT_OPTIONS.setEncoding("UTF-8");
+        DEFAULT_OPTIONS.setParallelRequire(true);
+        DEFAULT_OPTIONS.setParseCacheSize(ParseCache.DEFAULT_MAX_SIZE);
+        DEFAULT_OPTIONS.setIndexLoadPath(false);
+        DEFAULT_OPTIONS.setInstallParallelism(Runtime.getRuntime().availableProcessors());
+        DEFAULT_OPTIONS.setInstallMode(AssetInstaller.Mode.COPY);
+        DEFAULT_OPTIONS.setMinify(false);
     }
     
     private Options options;
@@ -30,9 +44,16 @@ public class Secretary {
     public void reset(Options opt) {
         options = DEFAULT_OPTIONS.merge(opt);
         environment = new Environment(options.getRoot());
+        environment.setCharset(Charset.forName(options.getEncoding()));
+        environment.setIndexed(options.isIndexLoadPath());
+        if (null != options.getParseCache()) {
+            environment.setParseCache(new ParseCache(new File(getFromRoot(options.getParseCache())), options.getParseCacheSize()));
+        }
         
         Options ppOpt = new Options();
         ppOpt.setStripComments(options.isStripComments());
+        ppOpt.setParallelRequire(options.isParallelRequire());
+        ppOpt.setMinify(options.isMinify());
         preprocessor = new Preprocessor(environment, ppOpt);
         
         addLoadLocations(options.getLoadPath());
@@ -48,7 +69,7 @@ public class Secretary {
     
     public void addLoadLocations(List<String> loadPath) { addLoadLocations(loadPath, new Options()); }
     public void addLoadLocations(List<String> loadPath, Options options) {
-        List<String> locations = expandPaths(loadPath);
+        List<String> locations = expandPaths(loadPath, options);
         for (String location : locations) {
             environment.registerLoadLocation(location);
         }
@@ -70,13 +91,70 @@ public class Secretary {
         return preprocessor.getConcatenation();
     }
     
-    public void installAssets() {
-        //TODO: ...
+    /**
+     * Brings the concatenation up to date, reading
+     * again only the SourceFiles which have changed
+     * (see Preprocessor.rebuild()).
+     * 
+     * @return true if any of the SourceFiles had changed
+     * @throws FileNotFoundException
+     */
+    public boolean rebuild() throws FileNotFoundException {
+        return preprocessor.rebuild();
     }
     
+    /**
+     * Starts watching the load path and the
+     * directories of the required SourceFiles,
+     * so that the concatenation can be rebuilt
+     * when they change (see SourceWatcher).
+     * 
+     * @return the watcher, which has to be closed
+     * @throws IOException
+     */
+    public SourceWatcher watch() throws IOException {
+        SourceWatcher watcher = new SourceWatcher(preprocessor);
+        watcher.start();
+        return watcher;
+    }
+    
+    /**
+     * Copies the files of all assets provided by
+     * the required SourceFiles to the asset root,
+     * if one is set, skipping the files which are
+     * up to date already. Depending on the installMode
+     * option, the files are linked instead (see AssetInstaller).
+     * 
+     * @return counts of the copied, linked and skipped files
+     * @throws IOException
+     */
+    public InstallReport installAssets() throws IOException {
+        AssetInstaller installer = new AssetInstaller(options.getInstallParallelism(), options.getInstallMode());
+        if (null != options.getAssetRoot()) {
+            for (Pathname assetPath : preprocessor.getAssetPaths()) {
+                copyAssetsFrom(assetPath.getAbsoluteLocation(), installer);
+            }
+        }
+        return installer.install();
+    }
+    
+    /**
+     * @return the latest mtime of the required SourceFiles 
+     *         and constants.yml files, or null if there are none
+     */
     public Long getSourceLastModified() {
-        //TODO: ...
-        return null;
+        return getFreshnessManifest().getLastModified();
+    }
+    
+    /**
+     * Records the files the concatenation is built
+     * from (the SourceFiles as they were read), so that
+     * it can be told later whether it has to be built again.
+     * 
+     * @return
+     */
+    public FreshnessManifest getFreshnessManifest() {
+        return FreshnessManifest.of(preprocessor);
     }
     
     /**
@@ -91,7 +169,9 @@ public class Secretary {
     
     /**
      * Defaults to expanding the paths if
-     * not set in the options.
+     * not set in the options. All paths are
+     * expanded together, so that the directories
+     * they share are only walked once.
      * 
      * @param paths
      * @param options
@@ -100,13 +180,23 @@ public class Secretary {
     private List<String> expandPaths(List<String> paths, Options options) { 
         List<String> arr = new ArrayList<String>();
         Boolean isExpandPaths = options.isExpandPaths();
+        if (null == isExpandPaths) { isExpandPaths = this.options.isExpandPaths(); }
         isExpandPaths = ((null == isExpandPaths) || isExpandPaths); // default null to true
         
-        for (String path : paths) {
-            if (isExpandPaths) {
-                
-            } else {
-                
+        if (isExpandPaths) {
+            try {
+                GlobFilenameExpander expander = new GlobFilenameExpander(new File(this.options.getRoot()));
+                for (List<File> files : expander.expand(paths).values()) {
+                    for (File file : files) {
+                        arr.add(file.getPath());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("couldn't expand " + paths, ex);
+            }
+        } else {
+            for (String path : paths) {
+                arr.add(getFromRoot(path));
             }
         }
         
@@ -117,22 +207,32 @@ public class Secretary {
         return (new File(path).isAbsolute()) ? path : (options.getRoot() + File.separator + path);
     }
     
-    private void copyAssetsFrom(String assetPath) {
-        //TODO: ...
+    private void copyAssetsFrom(String assetPath, AssetInstaller installer) throws IOException {
+        for (String filename : getRelativeFilePathsBeneath(assetPath)) {
+            File source = new File(assetPath, filename);
+            if (!source.isDirectory()) {
+                installer.add(source, new File(getAssetRoot(), filename));
+            }
+        }
     }
     
-    private String getRelativeFilePathsBeneath(String assetPath) {
-        //TODO: ...
-        return null;
+    private List<String> getRelativeFilePathsBeneath(String assetPath) throws IOException {
+        List<String> filenames = new ArrayList<String>();
+        int depth = getPathPieces(assetPath).size();
+        
+        for (File file : new GlobFilenameExpander(new File(assetPath)).expand("**")) {
+            List<String> pieces = getPathPieces(file.getPath());
+            filenames.add(StringUtils.join(pieces.subList(depth, pieces.size()).toArray(), File.separator));
+        }
+        
+        return filenames;
     }
     
     private String getAssetRoot() {
-        //TODO: ...
-        return null;
+        return getFromRoot(options.getAssetRoot());
     }
     
     private List<String> getPathPieces(String path) {
-        //TODO: ...
-        return null;
+        return Arrays.asList(path.split(Pattern.quote(File.separator)));
     }
 }
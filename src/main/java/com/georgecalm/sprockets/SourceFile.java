@@ -2,9 +2,12 @@ package com.georgecalm.sprockets;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.List;
-import java.util.Scanner;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.georgecalm.sprockets.Pathname.PathKind;
 
@@ -15,9 +18,12 @@ import com.georgecalm.sprockets.Pathname.PathKind;
  * in the system.
  */
 public class SourceFile {
+    private static Logger logger = LoggerFactory.getLogger(SourceFile.class);
     private Environment environment;
     private Pathname pathname;
-    private List<SourceLine> lines;
+    private LineTable lines;
+    private Charset charset;
+    private long readLength = -1, readMtime = -1;
 
     public SourceFile(Environment environment, Pathname pathname) {
         //TODO: why not extract the env from the pathname?
@@ -28,41 +34,82 @@ public class SourceFile {
     public Environment getEnvironment() { return environment; }
     public Pathname getPathname() { return pathname; }
 
+    public Charset getCharset() { return charset; }
+    
+    /**
+     * Reads the lines of this file with the
+     * charset of its Environment. Every SourceLine
+     * knows the range of bytes it was read from
+     * and the terminator it ended with.
+     * 
+     * @return lines of the file
+     * @throws FileNotFoundException
+     */
     public List<SourceLine> getSourceLines() throws FileNotFoundException {
+        return getLineTable().asList();
+    }
+    
+    /**
+     * Reads the lines of this file into a 
+     * LineTable (on first use), or takes them
+     * from the ParseCache of its Environment.
+     * 
+     * @return table of the lines
+     * @throws FileNotFoundException
+     */
+    public synchronized LineTable getLineTable() throws FileNotFoundException {
         if (null != lines) { return lines; }
         
-        lines = new LinkedList<SourceLine>();
-        List<SourceLine> comments = new LinkedList<SourceLine>();
+        charset = environment.getCharset();
+        File file = new File(pathname.getAbsoluteLocation());
+        readMtime = file.lastModified();
+        readLength = file.length();
+        
+        ParseCache cache = environment.getParseCache();
+        lines = (null != cache) ? cache.get(this, file, charset) : null;
+        if (null != lines) {
+            lines.setReadStamp(readLength, readMtime);
+            return lines;
+        }
         
-        Scanner scanner = new Scanner(new File(pathname.getAbsoluteLocation()));
         try {
-            String rawLine;
-            int lineno = 0;
-            while (scanner.hasNextLine()) {
-                rawLine = scanner.nextLine();
-                SourceLine line = new SourceLine(this, rawLine, lineno++);
-                lines.add(line);
-                
-                if (line.isBeginsPdocComment() || (comments.size() > 0)) {
-                    comments.add(line);
-                }
-                
-                if (line.isEndsMultilineComment()) {
-                    if (line.isEndsPdocComment()) {
-                        for (SourceLine l : comments) {
-                            l.setComment();
-                        }
-                    }
-                    comments.clear();
-                }
-            }
-        } finally {
-            scanner.close();
+            lines = new SourceFileReader(charset).read(this, file);
+            lines.setReadStamp(readLength, readMtime);
+            if (null != cache) { cache.put(file, charset, lines, readLength, readMtime); }
+        } catch (FileNotFoundException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            // same as the Scanner that was used before: 
+            // an error while reading ends the input
+            logger.error(String.format("couldn't read %s: %s", pathname, ex.getMessage()));
+            lines = new LineTable(this, new char[0], new int[] { 0 }, null);
         }
         
         return lines;
     }
     
+    /**
+     * Forgets the lines which were read,
+     * so that they are read again on next use.
+     */
+    public synchronized void invalidate() {
+        lines = null;
+        readLength = -1;
+        readMtime = -1;
+    }
+    
+    /**
+     * Determines whether the file has changed 
+     * (or has not been read yet) since its lines
+     * were read, judging by its size and mtime.
+     * 
+     * @return
+     */
+    public synchronized boolean isModifiedSinceRead() {
+        File file = new File(pathname.getAbsoluteLocation());
+        return ((null == lines) || (file.length() != readLength) || (file.lastModified() != readMtime));
+    }
+    
     // Not porting each_source_line. Prefer to use getSourceLines() with for:in instead.
     // Although it can be implemented with a sub-classed Runnable, that would complicate things.
     
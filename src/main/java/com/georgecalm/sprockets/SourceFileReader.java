@@ -0,0 +1,198 @@
+package com.georgecalm.sprockets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ *  The SourceFileReader reads a file into a LineTable.
+ * 
+ *  Large files are memory-mapped and small ones are
+ *  read into a pooled direct buffer. Line breaks ("\n",
+ *  "\r\n" and "\r") are found in the bytes, and every
+ *  line is decoded on its own with the given charset,
+ *  so that its byte offset is known exactly.
+ */
+public class SourceFileReader {
+    private static final int MAPPING_THRESHOLD = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+    
+    private Charset charset;
+    private CharsetDecoder decoder;
+    
+    public SourceFileReader(Charset charset) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    
+    public Charset getCharset() { return charset; }
+    
+    /**
+     * Reads the lines of the given file.
+     * 
+     * @param sourceFile the lines belong to
+     * @param file to read
+     * @return table of the lines
+     * @throws IOException
+     */
+    public LineTable read(SourceFile sourceFile, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            
+            if (size >= MAPPING_THRESHOLD) {
+                return split(sourceFile, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+            
+            ByteBuffer bytes = acquireBuffer((int) size);
+            try {
+                while (bytes.hasRemaining() && (channel.read(bytes) >= 0)) {
+                    // keep reading until the buffer is full or the file ends
+                }
+                bytes.flip();
+                return split(sourceFile, bytes);
+            } finally {
+                BUFFERS.set(bytes);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Determines whether line breaks of the charset
+     * are the single bytes they are in ASCII, which
+     * is what allows to look for them in the bytes.
+     * 
+     * @param charset
+     * @return
+     */
+    public static boolean isAsciiCompatible(Charset charset) {
+        return (charset.canEncode() && Arrays.equals(new byte[] { '\n', '\r' }, "\n\r".getBytes(charset)));
+    }
+    
+    private LineTable split(SourceFile sourceFile, ByteBuffer bytes) throws CharacterCodingException {
+        if (!isAsciiCompatible(charset)) {
+            return splitDecoded(sourceFile, bytes);
+        }
+        
+        int limit = bytes.limit();
+        CharBuffer text = CharBuffer.allocate((int) Math.ceil(limit * (double) decoder.maxCharsPerByte()));
+        int[] offsets = new int[16], byteOffsets = new int[16];
+        int count = 0;
+        
+        int start = 0;
+        while (start < limit) {
+            if ((count + 2) > offsets.length) {
+                offsets = Arrays.copyOf(offsets, (offsets.length * 2));
+                byteOffsets = Arrays.copyOf(byteOffsets, (byteOffsets.length * 2));
+            }
+            offsets[count] = text.position();
+            byteOffsets[count] = start;
+            count++;
+            
+            int end = start;
+            while ((end < limit) && !isLineBreak(bytes.get(end))) { end++; }
+            
+            bytes.limit(end).position(start);
+            text = decode(bytes, text);
+            bytes.limit(limit);
+            
+            // the terminator is kept in the text, as it is
+            start = end;
+            if ((start < limit) && (bytes.get(start) == '\r')) { text = put(text, '\r'); start++; }
+            if ((start < limit) && (bytes.get(start) == '\n')) { text = put(text, '\n'); start++; }
+        }
+        
+        offsets[count] = text.position();
+        byteOffsets[count] = limit;
+        return new LineTable(sourceFile, trim(text), Arrays.copyOf(offsets, (count + 1)), 
+                Arrays.copyOf(byteOffsets, (count + 1)));
+    }
+    
+    /**
+     * Splits the lines of a file whose charset does
+     * not encode line breaks as single bytes. The byte
+     * offsets of these lines are not known.
+     */
+    private LineTable splitDecoded(SourceFile sourceFile, ByteBuffer bytes) throws CharacterCodingException {
+        CharBuffer text = decode(bytes, CharBuffer.allocate((int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte())));
+        char[] chars = trim(text);
+        int[] offsets = new int[16];
+        int count = 0;
+        
+        int start = 0;
+        while (start < chars.length) {
+            if ((count + 2) > offsets.length) { offsets = Arrays.copyOf(offsets, (offsets.length * 2)); }
+            offsets[count++] = start;
+            
+            while ((start < chars.length) && (chars[start] != '\n') && (chars[start] != '\r')) { start++; }
+            if ((start < chars.length) && (chars[start] == '\r')) { start++; }
+            if ((start < chars.length) && (chars[start] == '\n')) { start++; }
+        }
+        
+        offsets[count] = chars.length;
+        return new LineTable(sourceFile, chars, Arrays.copyOf(offsets, (count + 1)), null);
+    }
+    
+    /**
+     * Decodes the bytes, appending 
+     * them to the given buffer.
+     * 
+     * @return the buffer (or a larger copy of it)
+     */
+    private CharBuffer decode(ByteBuffer bytes, CharBuffer text) throws CharacterCodingException {
+        decoder.reset();
+        
+        CoderResult result;
+        while ((result = decoder.decode(bytes, text, true)).isOverflow()) { text = grow(text); }
+        if (result.isError()) { result.throwException(); }
+        while (decoder.flush(text).isOverflow()) { text = grow(text); }
+        
+        return text;
+    }
+    
+    private static CharBuffer put(CharBuffer text, char c) {
+        if (!text.hasRemaining()) { text = grow(text); }
+        return text.put(c);
+    }
+    
+    private static CharBuffer grow(CharBuffer text) {
+        CharBuffer larger = CharBuffer.allocate(Math.max(16, (text.capacity() * 2)));
+        text.flip();
+        return larger.put(text);
+    }
+    
+    private static char[] trim(CharBuffer text) {
+        char[] chars = text.array();
+        return (text.position() == chars.length) ? chars : Arrays.copyOf(chars, text.position());
+    }
+    
+    private static boolean isLineBreak(byte b) {
+        return ((b == '\n') || (b == '\r'));
+    }
+    
+    private static ByteBuffer acquireBuffer(int size) {
+        ByteBuffer buffer = BUFFERS.get();
+        BUFFERS.remove();
+        
+        if ((null == buffer) || (buffer.capacity() < size)) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, (64 * 1024)));
+        }
+        
+        buffer.clear().limit(size);
+        return buffer;
+    }
+}
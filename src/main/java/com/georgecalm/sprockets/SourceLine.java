@@ -1,10 +1,7 @@
 package com.georgecalm.sprockets;
 
+import java.util.Collections;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.apache.commons.lang.StringUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,24 +10,46 @@ import org.slf4j.LoggerFactory;
  *  The SourceLine is one of the core
  *  classes in Sprockets. It holds all
  *  information about one line of a 
- *  SourceFile.
+ *  SourceFile. It is a light view over
+ *  a line of the LineTable of the file.
  */
 public class SourceLine {
     private static Logger logger = LoggerFactory.getLogger(SourceLine.class);
-    private SourceFile sourceFile;
-    private String line;
-    private Integer number;
+    static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private LineTable table;
+    private int index;
+    private SourceLineToken token;
     private String comment, require, provide;
     
     public SourceLine(SourceFile sourceFile, String line, Integer number) {
-        this.sourceFile = sourceFile;
-        this.line = line;
-        this.number = number;
+        this(LineTable.of(sourceFile, line, number), 0);
+    }
+    
+    /**
+     * Creates a view of a line of
+     * the given LineTable.
+     * 
+     * @param table
+     * @param index of the line in the table
+     */
+    public SourceLine(LineTable table, int index) {
+        this.table = table;
+        this.index = index;
     }
     
-    public SourceFile getSourceFile() { return sourceFile; }
+    public SourceFile getSourceFile() { return table.getSourceFile(); }
     public String getLine() { return this.toString(); }
-    public Integer getNumber() { return number; }
+    public Integer getNumber() { return table.getNumber(index); }
+    public LineTable getTable() { return table; }
+    public int getIndex() { return index; }
+    public long getOffset() { return table.getByteOffset(index); }
+    public int getLength() { return table.getByteLength(index); }
+    public String getTerminator() { return table.getTerminator(index); }
+    
+    public SourceLineToken getToken() {
+        if (null == token) { token = table.getToken(index); }
+        return token;
+    }
     
     /**
      * Retrieves a comment or
@@ -40,33 +59,42 @@ public class SourceLine {
      * @return
      */
     public String getComment() {
-        if (null != comment) { return comment; }
-        comment = findRegexGroup(line, "^\\s*\\/\\/(.*)", 1);
+        if ((null != comment) || !isComment()) { return comment; }
+        comment = getContent(getToken().getCommentStart(), getToken().getCommentEnd());
         return comment;
     }
     
     public boolean isComment() {
-        return (null != getComment());
+        return is(SourceLineToken.COMMENT);
     }
     
+    /**
+     * Marks the whole of this line
+     * as a comment (e.g. when it is
+     * a part of a PDoc comment).
+     */
     public void setComment() {
-        comment = line;
+        table.markAsComment(index);
+        token = null;
+        comment = null;
+        require = null;
+        provide = null;
     }
     
     public boolean isBeginsMultilineComment() {
-        return line.matches("^\\s*\\/\\*(.*)");
+        return is(SourceLineToken.BEGINS_MULTILINE_COMMENT);
     }
     
     public boolean isBeginsPdocComment() {
-        return line.matches("^\\s*\\/\\*\\*(.*)");
+        return is(SourceLineToken.BEGINS_PDOC_COMMENT);
     }
     
     public boolean isEndsMultilineComment() {
-        return line.matches("^(.*)\\*\\/\\s*");
+        return is(SourceLineToken.ENDS_MULTILINE_COMMENT);
     }
     
     public boolean isEndsPdocComment() {
-        return line.matches("^(.*)\\*\\*\\/\\s*");
+        return is(SourceLineToken.ENDS_PDOC_COMMENT);
     }
     
     /**
@@ -79,13 +107,13 @@ public class SourceLine {
      * @return name of asset or null
      */
     public String getRequire() {
-        if ((null != require) || !isComment()) { return require; }
-        require = findRegexGroup(getComment(), "^=\\s+require\\s+((<(.*)>)|(\"(.*)\"))\\s*$", 1);
+        if ((null != require) || !isRequire()) { return require; }
+        require = getContent(getToken().getArgumentStart(), getToken().getArgumentEnd());
         return require;
     }
     
     public boolean isRequire() {
-        return (null != getRequire());
+        return is(SourceLineToken.REQUIRE);
     }
     
     /**
@@ -99,20 +127,20 @@ public class SourceLine {
      * @return name of a required asset or null 
      */
     public String getProvide() {
-        if ((null != provide) || !isComment()) { return provide; }
-        provide = findRegexGroup(getComment(), "^=\\s+provide\\s+\"(.*?)\"\\s*$", 1);
+        if ((null != provide) || !isProvide()) { return provide; }
+        provide = getContent(getToken().getArgumentStart(), getToken().getArgumentEnd());
         return provide;
     }
     
     public boolean isProvide() {
-        return (null != getProvide());
+        return is(SourceLineToken.PROVIDE);
     }
-
+    
     /**
      * @return information about the current line
      */
     public String inspect() {
-        return String.format("line %d of %s", number, sourceFile.getPathname());
+        return String.format("line %d of %s", getNumber(), getSourceFile().getPathname());
     }
     
     /**
@@ -125,12 +153,16 @@ public class SourceLine {
      */
     @Override
     public String toString() {
-        String str = line;
+        String str = null;
         
         try {
-            str = toString(sourceFile.getEnvironment().getConstants());
+            // lines without constants do not need to look them up
+            Map<String, String> constants = isInterpolated() ? 
+                    getSourceFile().getEnvironment().getConstants() : Collections.<String, String>emptyMap();
+            str = toString(constants);
         } catch (UndefinedConstantException ex) {
             logger.error(ex.getMessage());
+            str = table.getLine(index);
         }
         
         return str;
@@ -152,78 +184,61 @@ public class SourceLine {
      * @throws UndefinedConstantException
      */
     public String toString(Map<String, String> constants) throws UndefinedConstantException {
-        String result = StringUtils.chomp(line);
-        result = doInterpolateConstants(result, constants);
-        result = stripTrailingWhitespace(result);
-        return (result + System.getProperty("line.separator"));
+        if (!isInterpolated()) {
+            StringBuilder sb = new StringBuilder(table.getContent(index).length() + LINE_SEPARATOR.length());
+            return table.appendTrimmedTo(index, sb).append(LINE_SEPARATOR).toString();
+        }
+        
+        StringBuilder sb = new StringBuilder(table.getContent(index).length() + LINE_SEPARATOR.length());
+        table.getTemplate(index).renderTo(sb, constants, this);
+        sb.setLength(SourceLineLexer.trimWhitespace(sb, 0, sb.length()));
+        return sb.append(LINE_SEPARATOR).toString();
+    }
+    
+    /**
+     * Determines whether there are any
+     * constants to be interpolated in this line.
+     * 
+     * @return
+     */
+    public boolean isInterpolated() {
+        return (null != table.getTemplate(index));
+    }
+    
+    /**
+     * Determines whether the string representation
+     * of this line is exactly what it was read as, 
+     * i.e. whether its bytes can be copied as they
+     * are from its SourceFile.
+     * 
+     * @return
+     */
+    public boolean isVerbatim() {
+        return table.isVerbatim(index, LINE_SEPARATOR);
     }
     
     @Override
     public boolean equals(Object otherSourceLine) {
         if (!(otherSourceLine instanceof SourceLine)) { return false; }
         SourceLine osl = (SourceLine) otherSourceLine;
-        return ((sourceFile.equals(osl.sourceFile)) && (line.equals(osl.line)) && (number == osl.number));
+        return (getSourceFile().equals(osl.getSourceFile()) && getNumber().equals(osl.getNumber()) 
+                && table.contentEquals(index, osl.table, osl.index));
     }
     
     @Override
     public int hashCode() {
         int result = 17;
-        result = 31 * result + sourceFile.hashCode();
-        result = 31 * result + line.hashCode();
-        result = 31 * result + number.hashCode();
+        result = 31 * result + getSourceFile().hashCode();
+        result = 31 * result + table.contentHashCode(index);
+        result = 31 * result + getNumber().hashCode();
         return result;
     }
-
-    /**
-     * Interpolates the provided
-     * constants with the input string.
-     * 
-     * @param input
-     * @param constants
-     * @return
-     * @throws UndefinedConstantException
-     */
-    private String doInterpolateConstants(String input, Map<String, String> constants) 
-            throws UndefinedConstantException {
-        String out = new String(input);
-        
-        Matcher m = Pattern.compile("<%=(.*?)%>").matcher(input);
-        while (m.find()) {
-            if (m.groupCount() != 1) { continue; }
-            String constant = m.group(1);
-            String trimmedConstant = constant.trim();
-            
-            if (constants.containsKey(trimmedConstant)) {
-                out = out.replaceAll(("<%=" + constant + "%>"), constants.get(trimmedConstant));
-            } else {
-                throw new UndefinedConstantException (
-                        String.format("couldn't find constant %s in %s", constant, inspect()));
-            }
-        }
-        
-        return out;
-    }
     
-    private String stripTrailingWhitespace(String input) {
-        return input.replaceAll("\\s+$", "");
+    private boolean is(int kind) {
+        return ((table.getKind(index) & kind) != 0);
     }
     
-    /**
-     * Helper to retrieve a regex group
-     * from an input, based on a pattern.
-     * The specified group will be returned
-     * if one is found; and null will be
-     * returned if one is not found.
-     * 
-     * @param input
-     * @param patternStr regex pattern
-     * @param groupNumber to retrieve
-     * 
-     * @return found group or null in case  
-     *         one is not found
-     */
-    private String findRegexGroup(CharSequence input, String patternStr, int groupNumber) {
-        Matcher matcher = Pattern.compile(patternStr).matcher(input);
-        return (matcher.find() && (matcher.groupCount() > 0))  ? matcher.group(groupNumber) : null;
+    private String getContent(int start, int end) {
+        return table.getContent(index).subSequence(start, end).toString();
     }
 }
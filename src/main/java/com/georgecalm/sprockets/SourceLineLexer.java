@@ -0,0 +1,169 @@
+package com.georgecalm.sprockets;
+
+/**
+ *  The SourceLineLexer classifies a line
+ *  of a SourceFile in a single pass, without
+ *  compiling or running any regular expressions.
+ * 
+ *  It follows the semantics of the patterns
+ *  that SourceLine used to match against:
+ * 
+ *    comment:        ^\s*\/\/(.*)
+ *    begins comment: ^\s*\/\*(.*)         (whole line)
+ *    begins pdoc:    ^\s*\/\*\*(.*)       (whole line)
+ *    ends comment:   ^(.*)\*\/\s*         (whole line)
+ *    ends pdoc:      ^(.*)\*\*\/\s*       (whole line)
+ *    require:        ^=\s+require\s+((<(.*)>)|("(.*)"))\s*$   (on the comment)
+ *    provide:        ^=\s+provide\s+"(.*?)"\s*$               (on the comment)
+ * 
+ *  where "\s" is [ \t\n\x0B\f\r] and "." is any
+ *  character but a line terminator.
+ */
+public final class SourceLineLexer {
+    private static final String REQUIRE = "require";
+    private static final String PROVIDE = "provide";
+    
+    private SourceLineLexer() {}
+    
+    /**
+     * Lexes the given line.
+     * 
+     * @param line
+     * @return token describing the line
+     */
+    public static SourceLineToken lex(CharSequence line) {
+        int length = line.length();
+        int kind = 0;
+        int commentStart = -1, commentEnd = -1;
+        
+        int start = skipWhitespace(line, 0, length);
+        if (isAt(line, start, length, '/', '/')) {
+            kind |= SourceLineToken.COMMENT;
+            commentStart = start + 2;
+            commentEnd = findLineTerminator(line, commentStart, length);
+        } else if (isAt(line, start, length, '/', '*') && (findLineTerminator(line, start + 2, length) == length)) {
+            kind |= SourceLineToken.BEGINS_MULTILINE_COMMENT;
+            if (isAt(line, start + 2, length, '*')) {
+                kind |= SourceLineToken.BEGINS_PDOC_COMMENT;
+            }
+        }
+        
+        int end = trimWhitespace(line, 0, length);
+        if (isAt(line, end - 2, length, '*', '/') && (findLineTerminator(line, 0, end - 2) == (end - 2))) {
+            kind |= SourceLineToken.ENDS_MULTILINE_COMMENT;
+            if (isAt(line, end - 3, length, '*') && (findLineTerminator(line, 0, end - 3) == (end - 3))) {
+                kind |= SourceLineToken.ENDS_PDOC_COMMENT;
+            }
+        }
+        
+        return lexDirective(line, kind, commentStart, commentEnd);
+    }
+    
+    /**
+     * Lexes the given line as if the whole
+     * of it was a comment. This is what happens
+     * to the lines inside of a PDoc comment.
+     * 
+     * @param line
+     * @param token the line was originally lexed to
+     * @return token describing the line
+     */
+    public static SourceLineToken lexAsComment(CharSequence line, SourceLineToken token) {
+        int kind = (token.getKind() & ~(SourceLineToken.REQUIRE | SourceLineToken.PROVIDE));
+        return lexDirective(line, (kind | SourceLineToken.COMMENT), 0, line.length());
+    }
+    
+    /**
+     * Looks for a require or a provide directive
+     * within the comment of a line.
+     */
+    private static SourceLineToken lexDirective(CharSequence line, int kind, int commentStart, int commentEnd) {
+        int argumentStart = -1, argumentEnd = -1;
+        
+        if ((commentStart >= 0) && isAt(line, commentStart, commentEnd, '=')) {
+            int i = commentStart + 1;
+            int j = skipWhitespace(line, i, commentEnd);
+            
+            if (j > i) {
+                boolean isRequire = isAt(line, j, commentEnd, REQUIRE);
+                boolean isProvide = !isRequire && isAt(line, j, commentEnd, PROVIDE);
+                
+                i = j + (isRequire ? REQUIRE.length() : PROVIDE.length());
+                j = skipWhitespace(line, i, commentEnd);
+                
+                int end = trimWhitespace(line, j, commentEnd);
+                boolean isArgument = (isRequire || isProvide) && (j > i) && ((end - j) >= 2)
+                        && (findLineTerminator(line, j, end) == end);
+                
+                if (isArgument) {
+                    char first = line.charAt(j), last = line.charAt(end - 1);
+                    
+                    if (isRequire && (((first == '<') && (last == '>')) || ((first == '"') && (last == '"')))) {
+                        kind |= SourceLineToken.REQUIRE;
+                        argumentStart = j;
+                        argumentEnd = end;
+                    } else if (isProvide && (first == '"') && (last == '"')) {
+                        kind |= SourceLineToken.PROVIDE;
+                        argumentStart = j + 1;
+                        argumentEnd = end - 1;
+                    }
+                }
+            }
+        }
+        
+        return new SourceLineToken(kind, commentStart, commentEnd, argumentStart, argumentEnd);
+    }
+    
+    /**
+     * Same set of characters as the "\s"
+     * character class of java.util.regex.
+     * 
+     * @param c
+     * @return
+     */
+    static boolean isWhitespace(char c) {
+        return ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\u000B') || (c == '\f') || (c == '\r'));
+    }
+    
+    /**
+     * Same set of characters as the ones
+     * "." of java.util.regex does not match.
+     * 
+     * @param c
+     * @return
+     */
+    static boolean isLineTerminator(char c) {
+        return ((c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029'));
+    }
+    
+    static int skipWhitespace(CharSequence s, int from, int to) {
+        while ((from < to) && isWhitespace(s.charAt(from))) { from++; }
+        return from;
+    }
+    
+    static int trimWhitespace(CharSequence s, int from, int to) {
+        while ((to > from) && isWhitespace(s.charAt(to - 1))) { to--; }
+        return to;
+    }
+    
+    private static int findLineTerminator(CharSequence s, int from, int to) {
+        while ((from < to) && !isLineTerminator(s.charAt(from))) { from++; }
+        return from;
+    }
+    
+    private static boolean isAt(CharSequence s, int at, int to, char c) {
+        return ((at >= 0) && (at < to) && (s.charAt(at) == c));
+    }
+    
+    private static boolean isAt(CharSequence s, int at, int to, char c1, char c2) {
+        return (isAt(s, at, to, c1) && isAt(s, at + 1, to, c2));
+    }
+    
+    private static boolean isAt(CharSequence s, int at, int to, String word) {
+        if ((at < 0) || ((at + word.length()) > to)) { return false; }
+        for (int i = 0; i < word.length(); i++) {
+            if (s.charAt(at + i) != word.charAt(i)) { return false; }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+package com.georgecalm.sprockets;
+
+/**
+ *  The SourceLineToken is the result of
+ *  lexing a single SourceLine. It holds the
+ *  kind of the line as a set of flags and
+ *  the offsets of the comment and of the
+ *  directive argument, so that no strings
+ *  need to be created until they are asked for.
+ */
+public final class SourceLineToken {
+    public static final int COMMENT = 1;
+    public static final int BEGINS_MULTILINE_COMMENT = 1 << 1;
+    public static final int BEGINS_PDOC_COMMENT = 1 << 2;
+    public static final int ENDS_MULTILINE_COMMENT = 1 << 3;
+    public static final int ENDS_PDOC_COMMENT = 1 << 4;
+    public static final int REQUIRE = 1 << 5;
+    public static final int PROVIDE = 1 << 6;
+    
+    private final int kind;
+    private final int commentStart, commentEnd;
+    private final int argumentStart, argumentEnd;
+    
+    SourceLineToken(int kind, int commentStart, int commentEnd, int argumentStart, int argumentEnd) {
+        this.kind = kind;
+        this.commentStart = commentStart;
+        this.commentEnd = commentEnd;
+        this.argumentStart = argumentStart;
+        this.argumentEnd = argumentEnd;
+    }
+    
+    public int getKind() { return kind; }
+    public int getCommentStart() { return commentStart; }
+    public int getCommentEnd() { return commentEnd; }
+    public int getArgumentStart() { return argumentStart; }
+    public int getArgumentEnd() { return argumentEnd; }
+    
+    public boolean is(int flag) {
+        return ((kind & flag) != 0);
+    }
+    
+    /**
+     * A plain line is one that is neither
+     * a comment nor a part of a multiline one.
+     * 
+     * @return
+     */
+    public boolean isPlain() {
+        return (kind == 0);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("kind: %d, comment: [%d, %d), argument: [%d, %d)",
+                kind, commentStart, commentEnd, argumentStart, argumentEnd);
+    }
+}
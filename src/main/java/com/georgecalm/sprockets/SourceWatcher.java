@@ -0,0 +1,297 @@
+package com.georgecalm.sprockets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *  The SourceWatcher watches the directories of the
+ *  load path of a Preprocessor's Environment, the
+ *  directories of the SourceFiles it has required and
+ *  the directories its requires were looked up through
+ *  (as a FreshnessManifest records them), so that changes
+ *  need not be found by polling mtimes. A directory which
+ *  does not exist is watched through its nearest existing
+ *  ancestor, until it is created.
+ * 
+ *  Events which come in bursts (e.g. when a file is
+ *  saved) are handled together, once no more events
+ *  have come in for a quiet period. Only the caches
+ *  affected by the events are invalidated: the lines
+ *  of changed SourceFiles, the resolutions of the load
+ *  path when files were added or removed, and the 
+ *  constants when a constants.yml file changed.
+ * 
+ *  The events are handled in a thread of the watcher,
+ *  while the Preprocessor is only rebuilt when
+ *  rebuildIfChanged() is called.
+ */
+public class SourceWatcher implements Closeable {
+    private static Logger logger = LoggerFactory.getLogger(SourceWatcher.class);
+    public static final long DEFAULT_QUIET_PERIOD = 50;
+    private static final int MODIFIED = 1, ADDED = 2, CONSTANTS = 4;
+    
+    private Preprocessor preprocessor;
+    private long quietPeriod;
+    private WatchService watchService;
+    private Map<WatchKey, Path> directories;
+    private volatile Set<Path> watchedDirectories;
+    private volatile Map<Path, SourceFile> sourceFiles;
+    private volatile Set<String> extensions;
+    private int changes;
+    private Thread thread;
+    
+    public SourceWatcher(Preprocessor preprocessor) { this(preprocessor, DEFAULT_QUIET_PERIOD); }
+    
+    /**
+     * @param preprocessor
+     * @param quietPeriod in milliseconds without events, after which 
+     *                    the events before are handled
+     */
+    public SourceWatcher(Preprocessor preprocessor, long quietPeriod) {
+        this.preprocessor = preprocessor;
+        this.quietPeriod = quietPeriod;
+        this.directories = new ConcurrentHashMap<WatchKey, Path>();
+        this.watchedDirectories = new HashSet<Path>();
+        this.sourceFiles = new HashMap<Path, SourceFile>();
+        this.extensions = new HashSet<String>();
+    }
+    
+    /**
+     * Starts watching the directories.
+     * 
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (null != thread) { return; }
+        
+        watchService = FileSystems.getDefault().newWatchService();
+        register();
+        
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "sprockets-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops watching the directories.
+     */
+    public synchronized void close() throws IOException {
+        if (null == thread) { return; }
+        
+        watchService.close();
+        thread.interrupt();
+        thread = null;
+    }
+    
+    /**
+     * @return true if a relevant change has been seen 
+     *         since the Preprocessor was last rebuilt
+     */
+    public synchronized boolean hasChanged() {
+        return (0 != changes);
+    }
+    
+    /**
+     * Rebuilds the Preprocessor if a relevant change
+     * has been seen: SourceFiles which changed are read
+     * again, and if files were added to the watched
+     * directories, the SourceFiles are required again.
+     * The directories of newly required SourceFiles
+     * are watched from then on. If the rebuild fails,
+     * the changes are kept, and the SourceFiles are
+     * required again on the next call.
+     * 
+     * @return true if the concatenation may have changed
+     * @throws FileNotFoundException
+     */
+    public boolean rebuildIfChanged() throws FileNotFoundException {
+        int seen;
+        synchronized (this) {
+            seen = changes;
+            changes = 0;
+        }
+        if (0 == seen) { return false; }
+        
+        try {
+            if ((seen & ADDED) != 0) {
+                preprocessor.requireAgain();
+            } else {
+                preprocessor.rebuild();
+            }
+        } catch (FileNotFoundException | RuntimeException ex) {
+            // the changes are kept, and as the Preprocessor may
+            // have been left half built, it is required again
+            synchronized (this) {
+                changes |= (seen | ADDED);
+            }
+            throw ex;
+        }
+        
+        try {
+            register();
+        } catch (IOException ex) {
+            logger.warn("couldn't watch the directories of the required files: " + ex.getMessage());
+        }
+        return true;
+    }
+    
+    /**
+     * Registers the directories of the load path, of
+     * the required SourceFiles and those the requires
+     * were looked up through (again), and takes note
+     * of the SourceFiles.
+     */
+    private synchronized void register() throws IOException {
+        Set<Path> dirs = new HashSet<Path>();
+        Map<Path, SourceFile> files = new HashMap<Path, SourceFile>();
+        Set<String> exts = new HashSet<String>();
+        Set<File> lookupDirs = new HashSet<File>();
+        
+        Set<Pathname> loadPath = preprocessor.getEnvironment().getLoadPath();
+        for (Pathname path : loadPath) {
+            dirs.add(Paths.get(path.getAbsoluteLocation()));
+        }
+        DependencyGraph graph = preprocessor.getDependencyGraph();
+        for (SourceFile sourceFile : preprocessor.getSourceFiles()) {
+            Path file = Paths.get(sourceFile.getPathname().getAbsoluteLocation());
+            files.put(file, sourceFile);
+            exts.add(FilenameUtils.getExtension(file.toString()));
+            dirs.add(file.getParent());
+            
+            for (DependencyGraph.Edge edge : graph.getEdgesFrom(sourceFile)) {
+                if (edge.getKind() == DependencyGraph.EdgeKind.REQUIRE) { 
+                    FreshnessManifest.addLookupDirectories(lookupDirs, edge.getOrigin(), loadPath); 
+                }
+            }
+        }
+        for (File dir : lookupDirs) {
+            dirs.add(dir.toPath());
+        }
+        
+        watchedDirectories = dirs;
+        sourceFiles = files;
+        extensions = exts;
+        registerDirectories();
+    }
+    
+    /**
+     * Registers the directories to watch which have not
+     * been registered yet, or the nearest existing ancestor
+     * of those which do not exist, where their creation is seen.
+     */
+    private synchronized void registerDirectories() throws IOException {
+        for (Path dir : watchedDirectories) {
+            while ((null != dir) && !Files.isDirectory(dir)) { dir = dir.getParent(); }
+            if ((null == dir) || directories.containsValue(dir)) { continue; }
+            
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, 
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(key, dir);
+        }
+    }
+    
+    private void watch() {
+        try {
+            while (true) {
+                List<WatchKey> keys = new ArrayList<WatchKey>();
+                keys.add(watchService.take());
+                
+                // coalesces the events until it gets quiet
+                for (WatchKey key; null != (key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)); ) {
+                    keys.add(key);
+                }
+                
+                handle(keys);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // the watcher was closed
+        }
+    }
+    
+    private void handle(List<WatchKey> keys) {
+        Map<Path, SourceFile> files = sourceFiles;
+        int seen = 0;
+        boolean isListingChanged = false, isDirectoryCreated = false;
+        
+        for (WatchKey key : keys) {
+            Path dir = directories.get(key);
+            
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+                    // events were lost, so anything may have changed
+                    for (SourceFile sourceFile : files.values()) { sourceFile.invalidate(); }
+                    preprocessor.getEnvironment().invalidateConstants();
+                    isListingChanged = true;
+                    seen |= (MODIFIED | ADDED | CONSTANTS);
+                    continue;
+                }
+                if (null == dir) { continue; }
+                
+                Path path = dir.resolve((Path) event.context());
+                SourceFile sourceFile = files.get(path);
+                if (null != sourceFile) {
+                    sourceFile.invalidate();
+                    seen |= MODIFIED;
+                } else if ("constants.yml".equals(path.getFileName().toString())) {
+                    preprocessor.getEnvironment().invalidateConstants();
+                    seen |= CONSTANTS;
+                } else if (StandardWatchEventKinds.ENTRY_CREATE == event.kind()) {
+                    // a new file may be found instead of a required one
+                    isListingChanged = true;
+                    boolean isDirectory = Files.isDirectory(path);
+                    isDirectoryCreated |= isDirectory;
+                    if (isDirectory || extensions.contains(FilenameUtils.getExtension(path.toString()))) { 
+                        seen |= ADDED; 
+                    }
+                } else if (StandardWatchEventKinds.ENTRY_DELETE == event.kind()) {
+                    isListingChanged = true;
+                }
+            }
+            
+            if (!key.reset()) { directories.remove(key); }
+        }
+        
+        if (isListingChanged) { preprocessor.getEnvironment().refreshIndex(); }
+        if (isDirectoryCreated) {
+            // a directory to watch may have been created
+            try {
+                registerDirectories();
+            } catch (IOException ex) {
+                logger.warn("couldn't watch the created directories: " + ex.getMessage());
+            }
+        }
+        if (0 != seen) {
+            synchronized (this) {
+                changes |= seen;
+            }
+            logger.debug("changes seen in " + keys.size() + " directories");
+        }
+    }
+}
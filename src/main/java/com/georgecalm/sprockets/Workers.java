@@ -0,0 +1,44 @@
+package com.georgecalm.sprockets;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ *  Holds the ForkJoinPool which is shared by
+ *  all parallel work (loading SourceFiles,
+ *  indexing the load path, etc.)
+ */
+final class Workers {
+    private static ForkJoinPool pool;
+    
+    private Workers() {}
+    
+    /**
+     * @return the pool (created on first use)
+     */
+    static synchronized ForkJoinPool getPool() {
+        if (null == pool) { pool = new ForkJoinPool(); }
+        return pool;
+    }
+    
+    /**
+     * Waits for a task, rethrowing the 
+     * IOException it may have failed with.
+     * 
+     * @param task
+     * @return the result of the task
+     * @throws IOException
+     */
+    static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException ex) {
+            // the pool may wrap the wrapped exception once more
+            for (Throwable cause = ex.getCause(); null != cause; cause = cause.getCause()) {
+                if (cause instanceof IOException) { throw (IOException) cause; }
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AssetInstallerTest {
+    private File dir;
+    private AssetInstaller installer;
+    
+    @Before
+    public void runBeforeEveryTest() {
+        dir = getLocationForResource("installed_assets");
+        installer = new AssetInstaller(4);
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        FileUtils.deleteDirectory(dir); // clean-up
+    }
+    
+    @Test
+    public void test_file_added_last_for_a_target_should_be_installed() throws IOException {
+        File target = new File(dir, "a/b/foo.js");
+        installer.add(getLocationForResource("src/foo/bar.js"), target);
+        installer.add(getLocationForResource("src/foo.js"), target);
+        
+        assertEquals(1, installer.install().getCopiedFiles());
+        assertTrue(FileUtils.contentEquals(getLocationForResource("src/foo.js"), target));
+    }
+    
+    @Test(expected=IOException.class)
+    public void test_file_which_can_not_be_copied_should_raise_an_error() throws IOException {
+        installer.add(getLocationForResource("src/nonexistent.js"), new File(dir, "nonexistent.js"));
+        installer.install();
+    }
+    
+    @Test
+    public void test_files_should_be_hard_linked_in_hard_link_mode() throws IOException {
+        File source = getLocationForResource("src/foo.js"), target = new File(dir, "foo.js");
+        installer = new AssetInstaller(4, AssetInstaller.Mode.HARD_LINK);
+        installer.add(source, target);
+        
+        assertEquals(1, installer.install().getLinkedFiles());
+        assertTrue(Files.isSameFile(source.toPath(), target.toPath()));
+        assertFalse(Files.isSymbolicLink(target.toPath()));
+        assertEquals(1, installer.install().getSkippedFiles());
+    }
+    
+    @Test
+    public void test_files_should_be_symbolically_linked_in_symbolic_link_mode() throws IOException {
+        File source = getLocationForResource("src/foo.js"), target = new File(dir, "foo.js");
+        installer = new AssetInstaller(4, AssetInstaller.Mode.SYMBOLIC_LINK);
+        installer.add(source, target);
+        
+        assertEquals(1, installer.install().getLinkedFiles());
+        assertTrue(Files.isSymbolicLink(target.toPath()));
+        assertEquals(source.getAbsoluteFile().toPath(), Files.readSymbolicLink(target.toPath()));
+    }
+    
+    @Test
+    public void test_stale_copy_should_be_replaced_by_a_link() throws IOException {
+        File source = getLocationForResource("src/foo.js"), target = new File(dir, "foo.js");
+        FileUtils.writeStringToFile(target, "stale");
+        installer = new AssetInstaller(4, AssetInstaller.Mode.HARD_LINK);
+        installer.add(source, target);
+        
+        assertEquals(1, installer.install().getLinkedFiles());
+        assertTrue(FileUtils.contentEquals(source, target));
+    }
+}
@@ -0,0 +1,142 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BundleServerTest {
+    private File dir;
+    private BundleServer server;
+    
+    @Before
+    public void runBeforeEveryTest() throws IOException {
+        dir = new File(RESOURCES_PATH, "served");
+        FileUtils.writeStringToFile(new File(dir, "app.js"), "//= require <lib>" + EOL + "var app;" + EOL);
+        FileUtils.writeStringToFile(new File(dir, "lib.js"), "var lib;" + EOL);
+        
+        server = new BundleServer(new InetSocketAddress("127.0.0.1", 0));
+        server.addBundle("app.js", getSecretary());
+        server.start();
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        server.stop();
+        FileUtils.deleteDirectory(dir); // clean-up
+    }
+    
+    @Test
+    public void test_bundle_should_be_served_with_an_etag() throws IOException {
+        HttpURLConnection conn = open("app.js");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("var lib;" + EOL + "var app;" + EOL, read(conn));
+        assertTrue(conn.getHeaderField("ETag").matches("\"[0-9a-f]{40}\""));
+        assertTrue(conn.getContentType().startsWith("application/javascript"));
+        
+        assertEquals(404, open("other.js").getResponseCode());
+    }
+    
+    @Test
+    public void test_matching_etag_should_be_answered_with_not_modified() throws IOException {
+        String etag = open("app.js").getHeaderField("ETag");
+        
+        HttpURLConnection conn = open("app.js");
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, conn.getResponseCode());
+        
+        conn = open("app.js");
+        conn.setRequestProperty("If-None-Match", "\"other\"");
+        assertEquals(200, conn.getResponseCode());
+    }
+    
+    @Test
+    public void test_unmodified_bundle_should_be_answered_with_not_modified() throws IOException {
+        String lastModified = open("app.js").getHeaderField("Last-Modified");
+        
+        HttpURLConnection conn = open("app.js");
+        conn.setRequestProperty("If-Modified-Since", lastModified);
+        assertEquals(304, conn.getResponseCode());
+        
+        conn = open("app.js");
+        conn.setRequestProperty("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(200, conn.getResponseCode());
+    }
+    
+    @Test
+    public void test_changed_bundle_should_be_served_with_a_new_etag() throws Exception {
+        String etag = open("app.js").getHeaderField("ETag");
+        FileUtils.writeStringToFile(new File(dir, "lib.js"), "var lib_2;" + EOL);
+        
+        HttpURLConnection conn = null;
+        for (int i = 0; i < 500; i++) {
+            // the watcher may take a while to see the change
+            conn = open("app.js");
+            conn.setRequestProperty("If-None-Match", etag);
+            if (304 != conn.getResponseCode()) { break; }
+            Thread.sleep(20);
+        }
+        
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("var lib_2;" + EOL + "var app;" + EOL, read(conn));
+        assertFalse(etag.equals(conn.getHeaderField("ETag")));
+    }
+    
+    @Test
+    public void test_compressed_variant_should_be_sent_if_accepted() throws IOException {
+        String etag = open("app.js").getHeaderField("ETag");
+        
+        HttpURLConnection conn = open("app.js");
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        assertEquals("gzip", conn.getContentEncoding());
+        assertEquals("var lib;" + EOL + "var app;" + EOL, IOUtils.toString(new GZIPInputStream(conn.getInputStream()), "UTF-8"));
+        assertFalse(etag.equals(conn.getHeaderField("ETag")));
+        
+        conn = open("app.js");
+        conn.setRequestProperty("Accept-Encoding", "gzip;q=0, deflate");
+        assertEquals("deflate", conn.getContentEncoding());
+        assertEquals("var lib;" + EOL + "var app;" + EOL, IOUtils.toString(new InflaterInputStream(conn.getInputStream()), "UTF-8"));
+        
+        server.setCompressed(false);
+        server.addBundle("plain.js", getSecretary());
+        conn = open("plain.js");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertNull(conn.getContentEncoding());
+    }
+    
+    private HttpURLConnection open(String name) throws IOException {
+        InetSocketAddress address = server.getAddress();
+        URL url = new URL("http", address.getHostName(), address.getPort(), "/" + name);
+        return (HttpURLConnection) url.openConnection();
+    }
+    
+    private Secretary getSecretary() throws IOException {
+        Options opt = new Options();
+        opt.setRoot(dir.getAbsolutePath());
+        Secretary sec = new Secretary(opt);
+        sec.getPreprocessor().require(sec.getEnvironment().find("app.js").getSourceFile());
+        return sec;
+    }
+    
+    private static String read(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
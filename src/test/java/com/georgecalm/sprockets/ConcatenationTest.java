@@ -4,9 +4,17 @@ import static org.junit.Assert.*;
 import static com.georgecalm.sprockets.Helper.*;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.util.EnumSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -51,4 +59,128 @@ public class ConcatenationTest {
         assertEquals(conc.toString(), FileUtils.readFileToString(fileName));
         fileName.delete(); // clean-up
     }
+    
+    @Test
+    public void testWriteToWriter() throws IOException {
+        conc.record(getSourceLine("hello\n"));
+        conc.record(getSourceLine("world\n"));
+        StringWriter writer = new StringWriter();
+        conc.writeTo(writer);
+        assertEquals(conc.toString(), writer.toString());
+    }
+    
+    @Test
+    public void testWriteToChannelEncodesUtf8() throws IOException {
+        conc.record(getSourceLine("var s = \"\u00e9\u4e2d\ud83d\ude00\";\n"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        conc.writeTo(Channels.newChannel(out));
+        assertEquals(conc.toString(), new String(out.toByteArray(), "UTF-8"));
+    }
+    
+    @Test
+    public void testSaveToReplacesExistingFile() throws IOException {
+        File fileName = new File(RESOURCES_PATH, "output.js");
+        FileUtils.writeStringToFile(fileName, "a much longer previous content of the file" + EOL);
+        conc.record(getSourceLine("a source line\n"));
+        conc.saveTo(fileName.toString());
+        assertEquals(conc.toString(), FileUtils.readFileToString(fileName));
+        fileName.delete(); // clean-up
+    }
+    
+    @Test
+    public void testSaveToCopiesVerbatimLinesOfSourceFiles() throws IOException {
+        File source = new File(RESOURCES_PATH, "verbatim.js");
+        FileUtils.writeStringToFile(source, "var a;" + EOL + "var b;   " + EOL + "var c = '<%= VERSION %>';" + EOL 
+                + "var d;" + EOL + "var e;" + EOL + "var f;\r\nvar g;");
+        
+        for (SourceLine line : getSourceFile("verbatim.js").getSourceLines()) {
+            conc.record(line);
+        }
+        
+        File fileName = new File(RESOURCES_PATH, "output.js");
+        conc.saveTo(fileName.toString());
+        assertEquals(conc.toString(), FileUtils.readFileToString(fileName));
+        assertTrue(conc.toString().contains("var c = '1.0';"));
+        fileName.delete(); // clean-up
+        source.delete();
+    }
+    
+    @Test
+    public void testSaveToWritesCompressedVariants() throws IOException {
+        File source = new File(RESOURCES_PATH, "verbatim.js");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) { sb.append("var v_" + i + " = '<%= VERSION %>';" + EOL); }
+        FileUtils.writeStringToFile(source, sb.toString());
+        
+        for (SourceLine line : getSourceFile("verbatim.js").getSourceLines()) {
+            conc.record(line);
+        }
+        
+        File fileName = new File(RESOURCES_PATH, "output.js");
+        File gzipped = new File(fileName.getPath() + ".gz"), deflated = new File(fileName.getPath() + ".deflate");
+        conc.saveTo(fileName.toString(), EnumSet.allOf(Compression.class), 9);
+        
+        assertEquals(conc.toString(), FileUtils.readFileToString(fileName));
+        assertEquals(conc.toString(), IOUtils.toString(new GZIPInputStream(new FileInputStream(gzipped)), "UTF-8"));
+        assertEquals(conc.toString(), IOUtils.toString(new InflaterInputStream(new FileInputStream(deflated)), "UTF-8"));
+        assertTrue(gzipped.length() < (fileName.length() / 4));
+        assertEquals(fileName.lastModified(), gzipped.lastModified());
+        assertArrayEquals(conc.getBytes(), FileUtils.readFileToByteArray(fileName));
+        
+        fileName.delete(); // clean-up
+        gzipped.delete();
+        deflated.delete();
+        source.delete();
+    }
+    
+    @Test
+    public void testCompressedVariantsHoldTheBytesOfTheSavedFile() throws IOException {
+        final int[] renders = new int[1];
+        conc.addFilter(new OutputFilter() {
+            public Pass begin() {
+                return new Pass() {
+                    public void filter(CharSequence line, StringBuilder out) { out.append(line); }
+                    public void finish(StringBuilder out) { out.append("// render " + (++renders[0]) + EOL); }
+                };
+            }
+        });
+        SourceFile sf = getSourceFile("testSourceFile.txt");
+        for (int i = 0; i < 2000; i++) { conc.record(new SourceLine(sf, "var v_" + i + ";", i)); }
+        
+        File fileName = new File(RESOURCES_PATH, "output.js");
+        File gzipped = new File(fileName.getPath() + ".gz"), deflated = new File(fileName.getPath() + ".deflate");
+        conc.saveTo(fileName.toString(), EnumSet.allOf(Compression.class), 1);
+        
+        byte[] bytes = FileUtils.readFileToByteArray(fileName);
+        assertEquals(1, renders[0]);
+        assertTrue(new String(bytes, "UTF-8").endsWith("// render 1" + EOL));
+        assertArrayEquals(bytes, IOUtils.toByteArray(new GZIPInputStream(new FileInputStream(gzipped))));
+        assertArrayEquals(bytes, IOUtils.toByteArray(new InflaterInputStream(new FileInputStream(deflated))));
+        
+        fileName.delete(); // clean-up
+        gzipped.delete();
+        deflated.delete();
+    }
+    
+    @Test
+    public void testFiltersApplyToAllOutputs() throws IOException {
+        File source = new File(RESOURCES_PATH, "verbatim.js");
+        FileUtils.writeStringToFile(source, "var a = 1;" + EOL + "/* b */" + EOL + "var b = '  2  ';" + EOL);
+        
+        for (SourceLine line : getSourceFile("verbatim.js").getSourceLines()) {
+            conc.record(line);
+        }
+        conc.addFilter(new JavaScriptMinifier());
+        
+        File fileName = new File(RESOURCES_PATH, "output.js");
+        conc.saveTo(fileName.toString());
+        StringWriter writer = new StringWriter();
+        conc.writeTo(writer);
+        
+        assertEquals("var a=1;var b='  2  ';", conc.toString());
+        assertEquals(conc.toString(), writer.toString());
+        assertEquals(conc.toString(), FileUtils.readFileToString(fileName));
+        fileName.delete(); // clean-up
+        source.delete();
+    }
 }
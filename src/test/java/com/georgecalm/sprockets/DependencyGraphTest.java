@@ -0,0 +1,103 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DependencyGraphTest {
+    private File dir;
+    private Environment env;
+    private Preprocessor pp;
+    private DependencyGraph graph;
+    
+    @Before
+    public void runBeforeEveryTest() throws IOException {
+        dir = new File(RESOURCES_PATH, "dependency_graph");
+        writeFile("app", "//= require \"lib\"", "//= require \"util\"", "//= provide \"../assets\"", "var app;");
+        writeFile("lib", "//= require \"util\"", "//= require \"lib\"", "var lib;");
+        writeFile("util", "//= require \"ping\"", "var util;");
+        writeFile("ping", "//= require \"pong\"", "var ping;");
+        writeFile("pong", "//= require \"ping\"", "var pong;");
+        
+        env = getEnvironmentForResources();
+        pp = new Preprocessor(env);
+        pp.require(getSourceFile("dependency_graph/app.js", env));
+        graph = pp.getDependencyGraph();
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        FileUtils.deleteDirectory(dir); // clean-up
+    }
+    
+    @Test
+    public void test_nodes_should_be_the_required_source_files() {
+        assertEquals(pp.getSourceFiles(), graph.getNodes());
+    }
+    
+    @Test
+    public void test_edges_should_know_the_lines_of_their_directives() {
+        List<DependencyGraph.Edge> edges = graph.getEdgesFrom(file("app"));
+        assertEquals(3, edges.size());
+        
+        assertEquals(DependencyGraph.EdgeKind.REQUIRE, edges.get(0).getKind());
+        assertEquals(file("lib").getPathname(), edges.get(0).getTo());
+        assertEquals(Integer.valueOf(0), edges.get(0).getOrigin().getNumber());
+        
+        assertEquals(DependencyGraph.EdgeKind.PROVIDE, edges.get(2).getKind());
+        assertAbsoluteLocationEndsWith("assets", edges.get(2).getTo());
+    }
+    
+    @Test
+    public void test_reverse_dependencies() {
+        assertEquals(names("lib", "app"), names(graph.getDependents(file("util"))));
+        assertEquals(names("util", "pong", "lib", "app", "ping"), names(graph.getAllDependents(file("ping").getPathname())));
+        assertEquals(names(), names(graph.getDependents(file("app"))));
+    }
+    
+    @Test
+    public void test_cycles_should_be_reported() {
+        List<List<SourceFile>> cycles = graph.getCycles();
+        assertEquals(2, cycles.size());
+        assertEquals(names("ping", "pong"), names(cycles.get(0)));
+        assertEquals(names("lib"), names(cycles.get(1)));
+    }
+    
+    @Test
+    public void test_topological_order_should_put_dependencies_first() {
+        assertEquals(names("pong", "ping", "util", "lib", "app"), names(graph.getTopologicalOrder()));
+    }
+    
+    private void writeFile(String name, String... lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) { sb.append(line + EOL); }
+        FileUtils.writeStringToFile(new File(dir, name + ".js"), sb.toString());
+    }
+    
+    private SourceFile file(String name) {
+        return graph.getNode(getPathname("dependency_graph/" + name + ".js", env));
+    }
+    
+    private static List<String> names(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) { list.add(name + ".js"); }
+        return list;
+    }
+    
+    private static List<String> names(Iterable<SourceFile> sourceFiles) {
+        List<String> list = new ArrayList<String>();
+        for (SourceFile sourceFile : sourceFiles) {
+            list.add(new File(sourceFile.getPathname().getAbsoluteLocation()).getName());
+        }
+        return list;
+    }
+}
@@ -6,10 +6,14 @@ import static com.georgecalm.sprockets.Helper.assertAbsoluteLocationEndsWith;
 import static com.georgecalm.sprockets.Helper.getEnvironmentForResources;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,7 +21,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 public class EnvironmentTest {
@@ -79,6 +88,123 @@ public class EnvironmentTest {
         assertNull(env.find("nonexistent.js"));
     }
     
+    @Test
+    public void test_find_should_remember_locations_that_were_not_found_until_invalidated() throws IOException {
+        Environment env = getEnvironmentForResources();
+        File file = new File(RESOURCES_PATH + File.separator + "src", "created_later.js");
+        
+        try {
+            assertNull(env.find("created_later.js"));
+            FileUtils.writeStringToFile(file, "var a;");
+            assertNull(env.find("created_later.js"));
+            
+            env.invalidateResolutions();
+            assertAbsoluteLocationEndsWith("src/created_later.js", env.find("created_later.js"));
+        } finally {
+            file.delete(); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_find_should_forget_resolutions_when_the_load_path_changes() {
+        Environment env = getEnvironmentForResources();
+        assertNull(env.find("bar.js"));
+        
+        env.registerLoadLocation(new File(RESOURCES_PATH + File.separator + "src", "foo").getAbsolutePath());
+        assertAbsoluteLocationEndsWith("foo/bar.js", env.find("bar.js"));
+    }
+    
+    @Test
+    public void test_indexed_find_should_find_what_find_finds() {
+        Environment env = getEnvironmentForResources();
+        Environment indexedEnv = getEnvironmentForResources();
+        indexedEnv.setIndexed(true);
+        
+        for (String location : Arrays.asList("foo.js", "foo/bar.js", "./foo/foo.js", "constants.yml", "nonexistent.js", "foo")) {
+            assertEquals(env.find(location), indexedEnv.find(location));
+        }
+        
+        String root = new File(RESOURCES_PATH + File.separator + "src", "foo").getAbsolutePath();
+        env.registerLoadLocation(root);
+        indexedEnv.registerLoadLocation(root);
+        assertEquals(env.find("foo.js"), indexedEnv.find("foo.js"));
+        assertAbsoluteLocationEndsWith("foo/foo.js", indexedEnv.find("foo.js"));
+    }
+    
+    @Test
+    public void test_indexed_finds_should_agree_while_the_index_is_built() throws Exception {
+        final Environment env = getEnvironmentForResources();
+        env.setIndexed(true);
+        final Pathname expected = getEnvironmentForResources().find("foo.js");
+        assertAbsoluteLocationEndsWith("src/foo.js", expected);
+        
+        List<Callable<Pathname>> finds = new ArrayList<Callable<Pathname>>();
+        for (int i = 0; i < 16; i++) {
+            finds.add(new Callable<Pathname>() {
+                public Pathname call() {
+                    return env.find("foo.js");
+                }
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Pathname> found : executor.invokeAll(finds)) {
+                assertEquals(expected, found.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void test_indexed_find_should_see_new_files_after_a_refresh() throws IOException {
+        Environment env = getEnvironmentForResources();
+        env.setIndexed(true);
+        File file = new File(RESOURCES_PATH + File.separator + "src", "indexed_later.js");
+        
+        try {
+            assertNull(env.find("indexed_later.js"));
+            FileUtils.writeStringToFile(file, "var a;");
+            assertNull(env.find("indexed_later.js"));
+            
+            env.refreshIndex();
+            assertAbsoluteLocationEndsWith("src/indexed_later.js", env.find("indexed_later.js"));
+        } finally {
+            file.delete(); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_constants_should_be_read_once_until_they_are_invalidated() throws IOException {
+        File dir = new File(RESOURCES_PATH, "constants_once");
+        File file = new File(dir, "constants.yml");
+        
+        try {
+            dir.mkdirs();
+            Environment env = new Environment(dir.getAbsolutePath());
+            Map<String, String> empty = env.getConstants();
+            assertTrue(empty.isEmpty());
+            
+            FileUtils.writeStringToFile(file, "VERSION: 1.0");
+            assertSame(empty, env.getConstants());
+            
+            env.invalidateConstants();
+            Map<String, String> constants = env.getConstants();
+            assertNotSame(empty, constants);
+            assertEquals("1.0", constants.get("VERSION"));
+            
+            try {
+                constants.put("VERSION", "2.0");
+                fail();
+            } catch (UnsupportedOperationException ex) {
+                //success();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
     @Test
     public void test_constants_should_return_a_hash_of_all_constants_defined_in_the_load_path() {
         Map<String, String> constants = getEnvironmentForResources().getConstants();
@@ -0,0 +1,95 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FreshnessManifestTest {
+    private File dir;
+    private Secretary sec;
+    
+    @Before
+    public void runBeforeEveryTest() throws IOException {
+        dir = new File(RESOURCES_PATH, "freshness");
+        FileUtils.writeStringToFile(new File(dir, "app.js"), "//= require <directives>" + EOL + "var app;" + EOL);
+        FileUtils.writeStringToFile(new File(dir, "lib/directives.js"), "// only a comment" + EOL);
+        
+        Options opt = new Options();
+        opt.setRoot(dir.getAbsolutePath());
+        sec = new Secretary(opt);
+        sec.addLoadLocation("lib");
+        sec.getPreprocessor().require(sec.getEnvironment().find("app.js").getSourceFile());
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        FileUtils.deleteDirectory(dir); // clean-up
+    }
+    
+    @Test
+    public void test_manifest_should_record_files_which_contribute_no_lines() {
+        FreshnessManifest manifest = sec.getFreshnessManifest();
+        File directives = new File(dir, "lib/directives.js").getAbsoluteFile();
+        
+        assertEquals("var app;" + EOL, sec.getConcatenation().toString());
+        assertTrue(manifest.getFiles().contains(directives));
+        assertTrue(manifest.getFiles().contains(new File(dir, "lib").getAbsoluteFile()));
+        assertTrue(manifest.getFiles().contains(new File(dir, "lib/constants.yml").getAbsoluteFile()));
+        assertTrue(manifest.isFresh());
+        
+        long built = Math.max(directives.lastModified(), new File(dir, "app.js").lastModified());
+        directives.setLastModified(directives.lastModified() + 60000);
+        assertEquals(Arrays.asList(directives), manifest.getChangedFiles());
+        // the concatenation has not been built again
+        assertEquals(Long.valueOf(built), sec.getSourceLastModified());
+    }
+    
+    @Test
+    public void test_manifest_should_record_source_files_as_they_were_read() throws IOException {
+        File app = new File(dir, "app.js").getAbsoluteFile();
+        FileUtils.writeStringToFile(app, "var edited;" + EOL);
+        app.setLastModified(app.lastModified() + 60000);
+        FreshnessManifest manifest = sec.getFreshnessManifest();
+        
+        assertEquals("var app;" + EOL, sec.getConcatenation().toString());
+        assertFalse(manifest.isFresh());
+        assertEquals(Arrays.asList(app), manifest.getChangedFiles());
+    }
+    
+    @Test
+    public void test_manifest_should_notice_created_constants() throws IOException {
+        FreshnessManifest manifest = sec.getFreshnessManifest();
+        File constants = new File(dir, "lib/constants.yml").getAbsoluteFile();
+        FileUtils.writeStringToFile(constants, "VERSION: 1.0" + EOL);
+        
+        assertFalse(manifest.isFresh());
+        assertTrue(manifest.getChangedFiles().contains(constants));
+    }
+    
+    @Test
+    public void test_manifest_should_notice_files_which_shadow_nested_requires() throws IOException {
+        FileUtils.writeStringToFile(new File(dir, "nested.js"), "//= require <foo/bar>" + EOL);
+        FileUtils.writeStringToFile(new File(dir, "lib/foo/bar.js"), "var bar;" + EOL);
+        File shadowing = new File(dir, "lib2/foo");
+        FileUtils.writeStringToFile(new File(shadowing, "other.js"), "var other;" + EOL);
+        shadowing.setLastModified(shadowing.lastModified() - 60000);
+        
+        sec.addLoadLocation("lib2");
+        Preprocessor pp = new Preprocessor(sec.getEnvironment());
+        pp.require(sec.getEnvironment().find("nested.js").getSourceFile());
+        assertEquals("var bar;" + EOL, pp.getConcatenation().toString());
+        
+        FreshnessManifest manifest = FreshnessManifest.of(pp);
+        assertTrue(manifest.isFresh());
+        FileUtils.writeStringToFile(new File(shadowing, "bar.js"), "var shadowed;" + EOL);
+        assertEquals(Arrays.asList(shadowing.getAbsoluteFile()), manifest.getChangedFiles());
+    }
+}
@@ -0,0 +1,158 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GlobFilenameExpanderTest {
+    private GlobFilenameExpander expander;
+    
+    @Before
+    public void runBeforeEveryTest() {
+        expander = new GlobFilenameExpander(new File(RESOURCES_PATH));
+    }
+    
+    @Test
+    public void test_star_should_match_within_a_directory() throws IOException {
+        assertExpandsTo("src/*.js", "src/foo.js", "src/script_with_assets.js", "src/script_with_comments.js");
+        assertExpandsTo("src/*/*.js", "src/foo/bar.js", "src/foo/foo.js");
+    }
+    
+    @Test
+    public void test_double_star_should_match_any_number_of_directories() throws IOException {
+        assertExpandsTo("src/**/foo.js", "src/foo.js", "src/foo/foo.js");
+        assertExpandsTo("**/*.png", "assets/images/script_with_assets/one.png", "assets/images/script_with_assets/two.png");
+        assertExpandsTo("assets/**", "assets/images", "assets/images/script_with_assets", 
+                "assets/images/script_with_assets/one.png", "assets/images/script_with_assets/two.png", 
+                "assets/stylesheets", "assets/stylesheets/script_with_assets.css");
+    }
+    
+    @Test
+    public void test_globs_should_match_directories() throws IOException {
+        assertExpandsTo("assets/images/*", "assets/images/script_with_assets");
+        assertExpandsTo("src/{foo,bar}*", "src/foo", "src/foo.js");
+        assertExpandsTo("src/fo[!o]", new String[0]);
+    }
+    
+    @Test
+    public void test_braces_should_be_able_to_span_directories() throws IOException {
+        assertExpandsTo("src/{foo/bar,foo}.js", "src/foo.js", "src/foo/bar.js");
+        assertExpandsTo("{src/foo,assets/images}/*", "assets/images/script_with_assets", "src/foo/bar.js", "src/foo/foo.js");
+        assertExpandsTo("src/{foo/{bar,foo},nonexistent/*}.js", "src/foo/bar.js", "src/foo/foo.js");
+        assertEquals(Arrays.asList("a/b.js", "c.js"), GlobFilenameExpander.expandBraces("{a/b,c}.js"));
+        assertEquals(Arrays.asList("{a,b}/c.js"), GlobFilenameExpander.expandBraces("{a,b}/c.js"));
+    }
+    
+    @Test
+    public void test_literal_globs_should_match_only_existing_files() throws IOException {
+        assertExpandsTo("src/foo/bar.js", "src/foo/bar.js");
+        assertExpandsTo("src/foo/nonexistent.js", new String[0]);
+        assertExpandsTo("nonexistent/*.js", new String[0]);
+    }
+    
+    @Test
+    public void test_segments_with_a_single_star_should_match_prefix_and_suffix() throws IOException {
+        assertExpandsTo("src/f*.js", "src/foo.js");
+        assertExpandsTo("src/script*", "src/script_with_assets.js", "src/script_with_comments.js");
+        assertExpandsTo("src/*comments.js", "src/script_with_comments.js");
+        assertExpandsTo("src/foo*foo.js", new String[0]);
+        assertExpandsTo("src/*s*.js", "src/script_with_assets.js", "src/script_with_comments.js");
+        assertExpandsTo("src/script_with_\\*", new String[0]);
+    }
+    
+    @Test
+    public void test_globs_ending_in_a_separator_should_match_only_directories() throws IOException {
+        assertExpandsTo("src/*/", "src/foo");
+        assertExpandsTo("assets/**/", "assets/images", "assets/images/script_with_assets", "assets/stylesheets");
+        assertExpandsTo("src/foo/", "src/foo");
+        assertExpandsTo("src/foo.js/", new String[0]);
+    }
+    
+    @Test
+    public void test_globs_expanded_together_should_find_what_they_find_alone() throws IOException {
+        List<String> globs = Arrays.asList("src/**/*.js", "src/foo/*", "src/*.yml", "**/*.png", "src/foo/bar.js", 
+                "assets/**/", new File(RESOURCES_PATH, "src/*.js").getAbsolutePath(), "nonexistent/*");
+        Map<String, List<File>> expanded = expander.expand(globs);
+        
+        assertEquals(globs, new ArrayList<String>(expanded.keySet()));
+        for (String glob : globs) {
+            assertEquals(expander.expand(glob), expanded.get(glob));
+        }
+        assertEquals(expanded, new GlobFilenameExpander(new File(RESOURCES_PATH), 4, 2).expand(globs));
+    }
+    
+    @Test
+    public void test_parallel_walk_should_find_the_same_files() throws IOException {
+        GlobFilenameExpander parallel = new GlobFilenameExpander(new File(RESOURCES_PATH), 4, 2);
+        for (String glob : new String[] { "src/*.js", "src/**/*.js", "**/*.png", "assets/**", "src/fo[!o]" }) {
+            assertEquals(expander.expand(glob), parallel.expand(glob));
+        }
+    }
+    
+    @Test
+    public void test_parallel_walk_should_read_one_directory_at_a_time_if_asked_to() throws IOException {
+        File dir = new File(RESOURCES_PATH, "glob_tree");
+        try {
+            for (int i = 0; i < 20; i++) {
+                for (int j = 0; j < 5; j++) {
+                    FileUtils.writeStringToFile(new File(dir, String.format("d%d/e%d/f%d.js", i, j, j)), "");
+                }
+            }
+            
+            List<File> files = new GlobFilenameExpander(new File(RESOURCES_PATH), 8, 1).expand("glob_tree/**/*.js");
+            assertEquals(100, files.size());
+            assertEquals(expander.expand("glob_tree/**/*.js"), files);
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_parallel_walk_should_drop_loops_of_symbolic_links_as_the_sequential_walk_does() throws IOException {
+        File dir = new File(RESOURCES_PATH, "glob_tree");
+        Path loop = new File(dir, "a/b/loop").toPath();
+        try {
+            FileUtils.writeStringToFile(new File(dir, "a/b/c.js"), "");
+            Files.createSymbolicLink(loop, new File(dir, "a").getAbsoluteFile().toPath());
+            
+            GlobFilenameExpander parallel = new GlobFilenameExpander(new File(RESOURCES_PATH), 4, 2);
+            for (String glob : new String[] { "glob_tree/**", "glob_tree/**/*.js", "glob_tree/a/b/*" }) {
+                assertEquals(expander.expand(glob), parallel.expand(glob));
+            }
+            assertEquals(Arrays.asList(new File(dir, "a"), new File(dir, "a/b"), new File(dir, "a/b/c.js")), 
+                    parallel.expand("glob_tree/**"));
+        } finally {
+            Files.deleteIfExists(loop); // clean-up, before the link could be followed
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void test_parallelism_should_be_positive() {
+        new GlobFilenameExpander(new File(RESOURCES_PATH), 0, 1);
+    }
+    
+    private void assertExpandsTo(String glob, String... locations) throws IOException {
+        List<String> expanded = new ArrayList<String>();
+        for (File file : expander.expand(glob)) {
+            String path = file.getAbsolutePath().substring(RESOURCES_PATH.length() + 1);
+            expanded.add(FilenameUtils.separatorsToUnix(path));
+        }
+        Collections.sort(expanded);
+        assertEquals(Arrays.asList(locations), expanded);
+    }
+}
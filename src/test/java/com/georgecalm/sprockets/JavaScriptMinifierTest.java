@@ -0,0 +1,69 @@
+package com.georgecalm.sprockets;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class JavaScriptMinifierTest {
+    @Test
+    public void test_white_space_and_comments_should_be_removed() {
+        assertEquals("var a=1,b=a+2;function f(x){return x*2;}", minify(
+                "var a = 1, /* one */ b = a + 2; // two\n",
+                "\n",
+                "function f(x) {\n",
+                "    return x * 2;\n",
+                "}\n"));
+    }
+    
+    @Test
+    public void test_line_breaks_should_be_kept_where_a_semicolon_may_be_inserted() {
+        assertEquals("var a=b\n(c||d).e()\nx\n++y", minify("var a = b\n", "(c || d).e()\n", "x\n", "++y\n"));
+        assertEquals("return\na", minify("return /* nothing\n but */ a"));
+    }
+    
+    @Test
+    public void test_strings_should_be_kept() {
+        assertEquals("var s=\"a  // b /* c */\",t='it\\'s  '", minify("var s = \"a  // b /* c */\", t = 'it\\'s  '\n"));
+    }
+    
+    @Test
+    public void test_line_continuations_should_be_kept_with_crlf() {
+        assertEquals("var s='a\\\r\n  b',t=1", minify("var s = 'a\\\r\n", "  b', t = 1\r\n"));
+        assertEquals("var s=\"a\\\r\n// b\";", minify("var s = \"a\\\r\n", "// b\";\r\n"));
+        assertEquals("var s=`a\\\r\n  ${b}`", minify("var s = `a\\\r\n", "  ${ b }`\r\n"));
+    }
+    
+    @Test
+    public void test_template_literals_should_be_kept_across_lines() {
+        assertEquals("var s=`a  ${b+{c:1}.c}\n  // d`;", minify("var s = `a  ${ b + { c: 1 }.c }\n", "  // d`;\n"));
+    }
+    
+    @Test
+    public void test_regular_expressions_should_be_told_from_divisions() {
+        assertEquals("var r=/ [/*] \\/ /g.test(s)", minify("var r = / [/*] \\/ /g.test(s)\n"));
+        assertEquals("return/ a /.test(s)", minify("return / a /.test(s)\n"));
+        assertEquals("var x=a/b/c", minify("var x = a / b / c\n"));
+        assertEquals("var x=a/ /b/.source.length", minify("var x = a / /b/.source.length\n"));
+    }
+    
+    @Test
+    public void test_operators_should_not_be_joined() {
+        assertEquals("a+ +b-(-c)- -d", minify("a + +b - (-c) - -d\n"));
+        assertEquals("var x=1 .toString(),y=a1.b,z=1..c;", minify("var x = 1 .toString(), y = a1 .b, z = 1..c;\n"));
+    }
+    
+    @Test
+    public void test_important_comments_should_be_kept() {
+        assertEquals("/*! (c) someone */var a;", minify("/*! (c) someone */\n", "var a;\n"));
+    }
+    
+    private static String minify(String... lines) {
+        OutputFilter.Pass pass = new JavaScriptMinifier().begin();
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            pass.filter(line, sb);
+        }
+        pass.finish(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParseCacheTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private File dir;
+    private ParseCache cache;
+    
+    @Before
+    public void runBeforeEveryTest() {
+        dir = new File(RESOURCES_PATH, "parse_cache");
+        cache = new ParseCache(dir);
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        FileUtils.deleteDirectory(dir); // clean-up
+        new File(RESOURCES_PATH, "cached.js").delete();
+    }
+    
+    @Test
+    public void test_cached_lines_should_be_the_lines_that_were_read() throws IOException {
+        Environment env = getEnvironmentWithCache();
+        List<SourceLine> read = getSourceFile("src/foo/bar.js", env).getSourceLines();
+        assertTrue(cache.getSize() > 0);
+        
+        SourceFile sf = getSourceFile("src/foo/bar.js", env);
+        LineTable cached = cache.get(sf, getLocationForResource("src/foo/bar.js"), UTF8);
+        assertNotNull(cached);
+        assertEquals(read.size(), cached.size());
+        
+        for (int i = 0; i < cached.size(); i++) {
+            SourceLine line = cached.get(i);
+            assertEquals(read.get(i), line);
+            assertEquals(read.get(i).getOffset(), line.getOffset());
+            assertEquals(read.get(i).getTerminator(), line.getTerminator());
+            assertEquals(read.get(i).isRequire(), line.isRequire());
+            assertEquals(read.get(i).getRequire(), line.getRequire());
+        }
+    }
+    
+    @Test
+    public void test_source_files_should_take_their_lines_from_the_cache() throws IOException {
+        File file = writeFile("var a;\n");
+        LineTable lines = new LineTable(null, "var b;\n".toCharArray(), new int[] { 0, 7 }, null);
+        cache.put(file, UTF8, lines, file.length(), file.lastModified());
+        
+        List<SourceLine> slines = getSourceFile("cached.js", getEnvironmentWithCache()).getSourceLines();
+        assertEquals("var b;" + EOL, slines.get(0).toString());
+    }
+    
+    @Test
+    public void test_changed_files_should_not_be_taken_from_the_cache() throws IOException {
+        File file = writeFile("var a;\n");
+        getSourceFile("cached.js", getEnvironmentWithCache()).getSourceLines();
+        assertNotNull(cache.get(null, file, UTF8));
+        
+        writeFile("var a = 1;\n");
+        assertNull(cache.get(null, file, UTF8));
+        assertNull(cache.get(null, file, Charset.forName("ISO-8859-1")));
+        assertEquals("var a = 1;" + EOL, getSourceFile("cached.js", getEnvironmentWithCache()).getSourceLines().get(0).toString());
+    }
+    
+    @Test
+    public void test_least_recently_used_entries_should_be_evicted() throws IOException {
+        File file = writeFile("var a;\n");
+        LineTable lines = getSourceFile("cached.js").getLineTable();
+        long entrySize;
+        
+        cache.put(file, UTF8, lines, file.length(), file.lastModified());
+        entrySize = cache.getSize();
+        
+        cache = new ParseCache(dir, (entrySize * 3));
+        for (String charset : new String[] { "UTF-8", "ISO-8859-1", "US-ASCII", "UTF-16" }) {
+            cache.put(file, Charset.forName(charset), lines, file.length(), file.lastModified());
+        }
+        
+        assertTrue(cache.getSize() <= (entrySize * 3));
+        assertTrue(cache.getSize() > 0);
+    }
+    
+    private Environment getEnvironmentWithCache() {
+        Environment env = getEnvironmentForResources();
+        env.setParseCache(cache);
+        return env;
+    }
+    
+    private File writeFile(String content) throws IOException {
+        File file = getLocationForResource("cached.js");
+        long mtime = file.lastModified();
+        FileUtils.writeStringToFile(file, content);
+        if (mtime > 0) { file.setLastModified(mtime + 2000); }
+        return file;
+    }
+}
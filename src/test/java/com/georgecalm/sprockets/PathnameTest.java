@@ -39,6 +39,17 @@ public class PathnameTest {
         assertEquals(getPathname("src/foo.js"), sf.getPathname());
     }
     
+    @Test
+    public void test_pathnames_of_an_environment_should_be_interned() {
+        Environment env = getEnvironmentForResources();
+        Pathname pathname = env.getPathnameFrom("src/foo/bar.js");
+        
+        assertSame(pathname, env.getPathnameFrom("src/foo/../foo/bar.js"));
+        assertSame(pathname, env.getPathnameFrom("src/foo").find("bar.js"));
+        assertSame(pathname, env.find("foo/bar.js"));
+        assertSame(pathname.getSourceFile(), env.find("foo/bar.js").getSourceFile());
+    }
+    
     @Test
     public void test_equality_of_pathnames() {
         assertEquals(getPathname("src/foo.js"), getPathname("src/foo.js"));
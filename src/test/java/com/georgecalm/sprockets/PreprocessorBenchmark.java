@@ -0,0 +1,74 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Timings which are too slow and too dependent
+ *  on the machine for the unit tests. They are
+ *  only run with the benchmark profile 
+ *  (mvn test -Pbenchmark).
+ */
+public class PreprocessorBenchmark {
+    private Environment env;
+    private Preprocessor pp;
+    
+    @Before
+    public void runBeforeEveryTest() {
+        env = getEnvironmentForResources();
+    }
+    
+    @Test
+    public void test_requiring_many_files_should_scale_linearly() throws IOException {
+        File dir = new File(RESOURCES_PATH, "many_files");
+        
+        try {
+            requireManyFiles(dir, 2500); // warm-up
+            long small = requireManyFiles(dir, 2500);
+            long large = requireManyFiles(dir, 10000);
+            
+            assertEquals(10000 + 1, pp.getSourceFiles().size());
+            
+            // four times the files should take about four times as
+            // long, and not the sixteen times of a quadratic look-up
+            assertTrue(String.format("%d ms for 2500 files, %d ms for 10000", small, large), (large < (10 * Math.max(small, 10))));
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    private long requireManyFiles(File dir, int count) throws IOException {
+        writeManyFiles(dir, count);
+        pp = new Preprocessor(env);
+        long start = System.currentTimeMillis();
+        pp.require(getPathname("many_files/root.js", env).getSourceFile());
+        return (System.currentTimeMillis() - start);
+    }
+    
+    /**
+     * Writes files which each require the one before
+     * them and the root, which requires all of them.
+     * 
+     * @param dir
+     * @param count of the files, besides the root
+     * @throws IOException
+     */
+    static void writeManyFiles(File dir, int count) throws IOException {
+        FileUtils.deleteDirectory(dir);
+        StringBuilder root = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            String previous = (i == 0) ? "root" : ("file_" + (i - 1));
+            FileUtils.writeStringToFile(new File(dir, "file_" + i + ".js"), "//= require \"" + previous + "\"" + EOL 
+                    + "//= require \"root\"" + EOL + "//= provide \"../assets\"" + EOL + "var v_" + i + ";" + EOL);
+            root.append("//= require \"file_" + i + "\"" + EOL);
+        }
+        FileUtils.writeStringToFile(new File(dir, "root.js"), root.toString());
+    }
+}
@@ -3,10 +3,13 @@ package com.georgecalm.sprockets;
 import static com.georgecalm.sprockets.Helper.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -91,6 +94,205 @@ public class PreprocessorTest {
         assertConcatenationContains(sb.toString());
     }
     
+    @Test
+    public void test_parallel_require_should_produce_the_same_concatenation_in_the_same_order() throws IOException {
+        File dir = new File(RESOURCES_PATH, "parallel_require");
+        for (int i = 0; i < 200; i++) {
+            StringBuilder sb = new StringBuilder("var before_" + i + ";" + EOL);
+            for (int child = (2 * i + 1); child <= (2 * i + 2); child++) {
+                if (child < 200) { sb.append("//= require \"file_" + child + "\"" + EOL); }
+            }
+            sb.append("//= require \"file_" + (i / 3) + "\"" + EOL);
+            sb.append("var after_" + i + ";" + EOL);
+            FileUtils.writeStringToFile(new File(dir, "file_" + i + ".js"), sb.toString());
+        }
+        
+        try {
+            Pathname root = getPathname("parallel_require/file_0.js", env);
+            pp.require(root.getSourceFile());
+            
+            Options opt = new Options(); opt.setParallelRequire(true);
+            Preprocessor parallelPp = new Preprocessor(env, opt);
+            parallelPp.require(root.getSourceFile());
+            
+            assertEquals(200, parallelPp.getSourceFiles().size());
+            assertEquals(pp.getSourceFiles(), parallelPp.getSourceFiles());
+            assertEquals(getOutputText(), parallelPp.getConcatenation().toString());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_parallel_require_of_a_file_that_does_not_exist_should_raise_an_error() {
+        Options opt = new Options(); opt.setParallelRequire(true);
+        pp = new Preprocessor(env, opt);
+        
+        try {
+            requireFile("requiring_a_file_that_does_not_exist_should_raise_an_error.js");
+            fail();
+        } catch(FileNotFoundException ex) {
+            assertTrue(ex.getMessage().contains("can't find file for"));
+        }
+    }
+    
+    @Test
+    public void test_requiring_many_files_should_include_each_of_them_once_in_order() throws IOException {
+        File dir = new File(RESOURCES_PATH, "many_files");
+        
+        try {
+            // the timing of many more of them is in PreprocessorBenchmark
+            PreprocessorBenchmark.writeManyFiles(dir, 200);
+            pp.require(getPathname("many_files/root.js", env).getSourceFile());
+            
+            assertEquals(200 + 1, pp.getSourceFiles().size());
+            assertEquals(getPathname("many_files/file_0.js", env), pp.getSourceFiles().get(1).getPathname());
+            assertEquals(getPathname("many_files/file_199.js", env), pp.getSourceFiles().get(200).getPathname());
+            assertEquals(1, pp.getAssetPaths().size());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_rebuild_should_splice_the_lines_of_changed_files() throws IOException {
+        File dir = new File(RESOURCES_PATH, "rebuild");
+        writeRebuildFile(dir, "app", "var app_1;", "//= require \"lib\"", "var app_2;", "//= require \"util\"", "var app_3;");
+        writeRebuildFile(dir, "lib", "var lib_1;", "//= require \"util\"", "// a comment", "var lib_2;");
+        writeRebuildFile(dir, "util", "var util_1;");
+        
+        try {
+            SourceFile app = getPathname("rebuild/app.js", env).getSourceFile();
+            pp.require(app);
+            assertFalse(pp.rebuild());
+            
+            DependencyGraph graph = pp.getDependencyGraph();
+            LineTable appLines = app.getLineTable();
+            LineTable utilLines = pp.getSourceFiles().get(2).getLineTable();
+            writeRebuildFile(dir, "lib", "var lib_1;", "var lib_1b;", "//= require \"util\"", "var lib_2;", "var lib_3;");
+            assertTrue(pp.rebuild());
+            
+            assertSame(appLines, app.getLineTable());
+            assertSame(utilLines, pp.getSourceFiles().get(2).getLineTable());
+            assertEquals(getRebuildOutput(app), getOutputText());
+            assertTrue(getOutputText().contains("var lib_1b;" + EOL + "var util_1;" + EOL + "var lib_2;" + EOL + "var lib_3;" + EOL + "var app_2;"));
+            assertSame(graph, pp.getDependencyGraph());
+            assertEquals(2, graph.getEdgesFrom(pp.getSourceFiles().get(1)).get(0).getOrigin().getIndex());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_concatenations_built_before_a_rebuild_should_still_be_saved_as_they_were() throws IOException {
+        File dir = new File(RESOURCES_PATH, "rebuild");
+        writeRebuildFile(dir, "app", "var first;", "var second;");
+        File output = new File(RESOURCES_PATH, "output.js");
+        
+        try {
+            pp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            Concatenation old = getConcatenation();
+            
+            writeRebuildFile(dir, "app", "var CHANGED_CONTENT_HERE;", "var second;");
+            assertTrue(pp.rebuild());
+            
+            old.saveTo(output.toString());
+            assertEquals("var first;" + EOL + "var second;" + EOL, FileUtils.readFileToString(output));
+            getConcatenation().saveTo(output.toString());
+            assertEquals("var CHANGED_CONTENT_HERE;" + EOL + "var second;" + EOL, FileUtils.readFileToString(output));
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+            output.delete();
+        }
+    }
+    
+    @Test
+    public void test_preprocessors_of_an_environment_should_share_the_lines_of_unchanged_files() throws IOException {
+        File dir = new File(RESOURCES_PATH, "rebuild");
+        writeRebuildFile(dir, "app", "var app_1;", "//= require \"lib\"");
+        writeRebuildFile(dir, "lib", "var lib_1;");
+        
+        try {
+            pp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            LineTable libLines = pp.getSourceFiles().get(1).getLineTable();
+            
+            Preprocessor otherPp = new Preprocessor(env);
+            otherPp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            assertSame(libLines, otherPp.getSourceFiles().get(1).getLineTable());
+            
+            writeRebuildFile(dir, "lib", "var lib_2;");
+            otherPp = new Preprocessor(env);
+            otherPp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            assertEquals("var app_1;" + EOL + "var lib_2;" + EOL, otherPp.getConcatenation().toString());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_rebuild_should_see_files_read_again_by_another_preprocessor() throws IOException {
+        File dir = new File(RESOURCES_PATH, "rebuild");
+        writeRebuildFile(dir, "app", "var first;");
+        
+        try {
+            Preprocessor otherPp = new Preprocessor(env);
+            pp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            otherPp.require(getPathname("rebuild/app.js", env).getSourceFile());
+            
+            writeRebuildFile(dir, "app", "var second;");
+            assertTrue(otherPp.rebuild());
+            assertEquals("var second;" + EOL, otherPp.getConcatenation().toString());
+            
+            assertTrue(pp.rebuild());
+            assertEquals("var second;" + EOL, getOutputText());
+            assertSame(otherPp.getSourceFiles().get(0).getLineTable(), pp.getSourceFiles().get(0).getLineTable());
+            assertFalse(pp.rebuild());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_rebuild_should_require_again_when_requires_change() throws IOException {
+        File dir = new File(RESOURCES_PATH, "rebuild");
+        writeRebuildFile(dir, "app", "var app_1;", "//= require \"lib\"", "var app_2;");
+        writeRebuildFile(dir, "lib", "var lib_1;");
+        writeRebuildFile(dir, "util", "var util_1;");
+        
+        try {
+            SourceFile app = getPathname("rebuild/app.js", env).getSourceFile();
+            pp.require(app);
+            
+            writeRebuildFile(dir, "lib", "//= require \"util\"", "var lib_1;");
+            assertTrue(pp.rebuild());
+            
+            assertEquals(3, pp.getSourceFiles().size());
+            assertEquals(getRebuildOutput(app), getOutputText());
+            assertEquals(1, pp.getDependencyGraph().getDependents(pp.getSourceFiles().get(2)).size());
+        } finally {
+            FileUtils.deleteDirectory(dir); // clean-up
+        }
+    }
+    
+    private void writeRebuildFile(File dir, String name, String... lines) throws IOException {
+        File file = new File(dir, name + ".js");
+        long mtime = file.lastModified();
+        
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) { sb.append(line + EOL); }
+        FileUtils.writeStringToFile(file, sb.toString());
+        
+        // make sure the change is seen, even if the file system
+        // does not keep the mtimes in milliseconds
+        if (mtime > 0) { file.setLastModified(mtime + 2000); }
+    }
+    
+    private String getRebuildOutput(SourceFile sourceFile) throws FileNotFoundException {
+        Preprocessor freshPp = new Preprocessor(env);
+        freshPp.require(new SourceFile(env, sourceFile.getPathname()));
+        return freshPp.getConcatenation().toString();
+    }
+    
     private Concatenation getConcatenation() {
         return pp.getConcatenation();
     }
@@ -4,10 +4,13 @@ import static com.georgecalm.sprockets.Helper.*;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -43,4 +46,84 @@ public class SecretaryTest {
         //TODO: asserts?
         assertTrue(true);
     }
+    
+    @Test
+    public void test_load_locations_are_expanded_by_default() {
+        Options opt = new Options(); 
+        opt.setRoot(RESOURCES_PATH); 
+        
+        sec = new Secretary(opt);
+        List<String> loadPath = new ArrayList<String>();
+        loadPath.add("src/*/");
+        loadPath.add("assets/**/");
+        sec.addLoadLocations(loadPath);
+        
+        List<String> absLocs = new ArrayList<String>();
+        for (Pathname path : sec.getEnvironment().getLoadPath()) {
+            absLocs.add(path.getAbsoluteLocation());
+        }
+        
+        assertTrue(absLocs.contains(getLocationForResource("src/foo").getAbsolutePath()));
+        assertTrue(absLocs.contains(getLocationForResource("assets/images/script_with_assets").getAbsolutePath()));
+        assertFalse(absLocs.contains(getLocationForResource("src/foo.js").getAbsolutePath()));
+    }
+    
+    @Test
+    public void test_install_assets_should_copy_provided_assets_to_the_asset_root() throws IOException {
+        File assetRoot = getLocationForResource("installed_assets");
+        try {
+            sec = getSecretaryWithAssetRoot("installed_assets");
+            InstallReport report = sec.installAssets();
+            
+            assertEquals(3, report.getCopiedFiles());
+            assertEquals(0, report.getSkippedFiles());
+            for (String filename : new String[] { "images/script_with_assets/one.png", "stylesheets/script_with_assets.css" }) {
+                File source = getLocationForResource("assets/" + filename), target = new File(assetRoot, filename);
+                assertTrue(FileUtils.contentEquals(source, target));
+                assertEquals(source.lastModified(), target.lastModified());
+            }
+        } finally {
+            FileUtils.deleteDirectory(assetRoot); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_install_assets_should_skip_files_which_are_up_to_date() throws IOException {
+        File assetRoot = getLocationForResource("installed_assets");
+        try {
+            sec = getSecretaryWithAssetRoot("installed_assets");
+            long bytes = sec.installAssets().getCopiedBytes();
+            
+            InstallReport report = sec.installAssets();
+            assertEquals(0, report.getCopiedFiles());
+            assertEquals(3, report.getSkippedFiles());
+            assertEquals(bytes, report.getSkippedBytes());
+            
+            FileUtils.writeStringToFile(new File(assetRoot, "stylesheets/script_with_assets.css"), "changed");
+            report = sec.installAssets();
+            assertEquals(1, report.getCopiedFiles());
+            assertEquals(2, report.getSkippedFiles());
+        } finally {
+            FileUtils.deleteDirectory(assetRoot); // clean-up
+        }
+    }
+    
+    @Test
+    public void test_install_assets_should_copy_nothing_without_an_asset_root() throws IOException {
+        sec = getSecretaryWithAssetRoot(null);
+        InstallReport report = sec.installAssets();
+        assertEquals(0, report.getCopiedFiles());
+        assertEquals(0, report.getSkippedFiles());
+    }
+    
+    private Secretary getSecretaryWithAssetRoot(String assetRoot) throws FileNotFoundException {
+        Options opt = new Options(); 
+        opt.setRoot(RESOURCES_PATH); 
+        opt.setAssetRoot(assetRoot);
+        opt.setInstallParallelism(2);
+        
+        Secretary secretary = new Secretary(opt);
+        secretary.getPreprocessor().require(getPathname("src/script_with_assets.js", secretary.getEnvironment()).getSourceFile());
+        return secretary;
+    }
 }
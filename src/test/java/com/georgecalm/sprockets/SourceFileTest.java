@@ -1,13 +1,20 @@
 package com.georgecalm.sprockets;
 
 import static com.georgecalm.sprockets.Helper.getContentOfResource;
+import static com.georgecalm.sprockets.Helper.getEnvironmentForResources;
+import static com.georgecalm.sprockets.Helper.getLocationForResource;
 import static com.georgecalm.sprockets.Helper.getSourceFile;
 import static com.georgecalm.sprockets.Helper.assertAbsoluteLocationEndsWith;
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
+
 import org.junit.Test;
 
 public class SourceFileTest {
@@ -25,6 +32,57 @@ public class SourceFileTest {
         assertEquals(4, slines.size());
     }
     
+    @Test
+    public void test_source_lines_should_know_the_bytes_they_were_read_from() throws IOException {
+        List<SourceLine> slines = getSourceFile("src/foo/bar.js").getSourceLines();
+        
+        long offset = 0;
+        for (SourceLine line : slines) {
+            assertEquals(offset, line.getOffset());
+            assertEquals("\n", line.getTerminator());
+            offset += line.getLength();
+        }
+        
+        assertEquals(getContentOfResource("src/foo/bar.js").length(), offset);
+    }
+    
+    @Test
+    public void test_source_lines_should_round_trip_with_their_terminators_and_charset() throws IOException {
+        File file = getLocationForResource("latin1.js");
+        byte[] content = "var a;\r\nvar b;\rvar c;\n// \u00e9t\u00e9".getBytes("ISO-8859-1");
+        FileUtils.writeByteArrayToFile(file, content);
+        
+        Environment env = getEnvironmentForResources();
+        env.setCharset(Charset.forName("ISO-8859-1"));
+        List<SourceLine> slines = getSourceFile("latin1.js", env).getSourceLines();
+        file.delete();
+        
+        assertEquals(4, slines.size());
+        assertEquals("\r\n", slines.get(0).getTerminator());
+        assertEquals("\r", slines.get(1).getTerminator());
+        assertEquals("\n", slines.get(2).getTerminator());
+        assertEquals("", slines.get(3).getTerminator());
+        assertEquals(" \u00e9t\u00e9", slines.get(3).getComment());
+        
+        StringBuilder sb = new StringBuilder();
+        for (SourceLine line : slines) { sb.append(line.getLine().trim()).append(line.getTerminator()); }
+        assertTrue(Arrays.equals(content, sb.toString().getBytes("ISO-8859-1")));
+    }
+    
+    @Test
+    public void test_large_source_files_should_be_read_completely() throws IOException {
+        File file = getLocationForResource("large.js");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) { sb.append("var a").append(i).append(" = ").append(i).append(";\n"); }
+        FileUtils.writeStringToFile(file, sb.toString());
+        
+        List<SourceLine> slines = getSourceFile("large.js").getSourceLines();
+        file.delete();
+        
+        assertEquals(100000, slines.size());
+        assertEquals("var a99999 = 99999;", slines.get(99999).getLine().trim());
+    }
+    
     @Test
     public void test_find_should_return_pathname_for_file_relative_to_the_current_pathname() {
         SourceFile sf = getSourceFile("src/foo/foo.js");
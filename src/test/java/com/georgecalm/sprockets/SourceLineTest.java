@@ -91,6 +91,25 @@ public class SourceLineTest {
         assertEquals("../assets", getSourceLine("//= provide \"../assets\"").getProvide());
     }
     
+    @Test
+    public void test_line_marked_as_comment_should_be_a_comment() {
+        SourceLine line = getSourceLine(" *  This is a PDoc comment");
+        assertFalse(line.isComment());
+        line.setComment();
+        assertTrue(line.isComment());
+        assertEquals(" *  This is a PDoc comment", line.getComment());
+        assertFalse(line.isRequire());
+    }
+    
+    @Test
+    public void test_token_should_classify_the_line_once() {
+        SourceLineToken token = getSourceLine("//= require <foo>").getToken();
+        assertTrue(token.is(SourceLineToken.COMMENT));
+        assertTrue(token.is(SourceLineToken.REQUIRE));
+        assertFalse(token.is(SourceLineToken.PROVIDE));
+        assertTrue(getSourceLine("var foo;").getToken().isPlain());
+    }
+    
     @Test
     public void test_inspect_should_include_source_file_location_and_line_number() {
         Pathname pathname = new Pathname(getEnvironmentForResources(), "/a/b/c.js");
@@ -104,12 +123,35 @@ public class SourceLineTest {
         Map<String, String> constants = new HashMap<String, String>(); 
         constants.put("VERSION", "1.0");
         assertEquals("var VERSION = \"1.0\";"+EOL, getSourceLine("var VERSION = \"<%= VERSION %>\";").toString(constants));
-    
+        
         Map<String, String> map = new HashMap<String, String>();
         map.put("ONE", "1"); map.put("TWO", "2");
         assertEquals("one: 1, two: 2, one: 1, two: 2"+EOL, getSourceLine("one: <%=ONE%>, two: <%= TWO%>, one: <%=ONE %>, two: <%= TWO %>").toString(map));
     }
     
+    @Test
+    public void test_interpolation_of_constants_with_regex_characters_in_their_names_and_values() throws UndefinedConstantException {
+        Map<String, String> constants = new HashMap<String, String>(); 
+        constants.put("A.B", "$1\\");
+        assertEquals("x = $1\\;"+EOL, getSourceLine("x = <%= A.B %>;").toString(constants));
+    }
+    
+    @Test
+    public void test_line_without_constants_is_not_interpolated() throws UndefinedConstantException {
+        assertFalse(getSourceLine("var a = '<%';").isInterpolated());
+        assertTrue(getSourceLine("var a = '<%= A %>';").isInterpolated());
+        assertEquals("var a = '<%';"+EOL, getSourceLine("var a = '<%';  ").toString(new HashMap<String, String>()));
+    }
+    
+    @Test
+    public void test_templates_are_compiled_once_per_line_table() {
+        LineTable table = getSourceLine("var a = '<%= A %>';").getTable();
+        assertSame(table.getTemplate(0), table.get(0).getTable().getTemplate(0));
+        assertNotNull(table.getTemplate(0));
+        assertNull(getSourceLine("var a = '<%= A';").getTable().getTemplate(0));
+        assertFalse(getSourceLine("var a = '<%= A';").isInterpolated());
+    }
+    
     @Test
     public void test_interpolation_of_missing_constant_raises_undefined_constant_error() {
         try {
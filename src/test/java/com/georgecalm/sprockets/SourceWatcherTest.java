@@ -0,0 +1,141 @@
+package com.georgecalm.sprockets;
+
+import static com.georgecalm.sprockets.Helper.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SourceWatcherTest {
+    private File dir;
+    private Secretary sec;
+    private SourceWatcher watcher;
+    
+    @Before
+    public void runBeforeEveryTest() throws IOException {
+        dir = new File(RESOURCES_PATH, "watched");
+        FileUtils.writeStringToFile(new File(dir, "app.js"), "//= require <lib>" + EOL + "var app;" + EOL);
+        FileUtils.writeStringToFile(new File(dir, "b/lib.js"), "var lib_b;" + EOL);
+        new File(dir, "a").mkdirs();
+        
+        Options opt = new Options();
+        opt.setRoot(dir.getAbsolutePath());
+        sec = new Secretary(opt);
+        sec.addLoadLocation("b");
+        sec.addLoadLocation("a");
+        sec.getPreprocessor().require(sec.getEnvironment().find("app.js").getSourceFile());
+        watcher = sec.watch();
+    }
+    
+    @After
+    public void runAfterEveryTest() throws IOException {
+        watcher.close();
+        FileUtils.deleteDirectory(dir); // clean-up
+    }
+    
+    @Test
+    public void test_changed_source_file_should_be_read_again() throws Exception {
+        assertFalse(watcher.rebuildIfChanged());
+        
+        File lib = new File(dir, "b/lib.js");
+        FileUtils.writeStringToFile(lib, "var lib_b2;" + EOL);
+        waitForChange();
+        
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var lib_b2;" + EOL + "var app;" + EOL, sec.getConcatenation().toString());
+        assertFalse(watcher.hasChanged());
+    }
+    
+    @Test
+    public void test_changes_should_be_kept_if_the_rebuild_fails() throws Exception {
+        File lib = new File(dir, "b/lib.js");
+        lib.delete();
+        waitForChange();
+        
+        try {
+            watcher.rebuildIfChanged();
+            fail("the required file is missing");
+        } catch (FileNotFoundException ex) {
+            assertTrue(watcher.hasChanged());
+        }
+        
+        FileUtils.writeStringToFile(lib, "var lib_b2;" + EOL);
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var lib_b2;" + EOL + "var app;" + EOL, sec.getConcatenation().toString());
+    }
+    
+    @Test
+    public void test_added_file_should_be_found_instead_of_required_one() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "a/lib.js"), "var lib_a;" + EOL);
+        waitForChange();
+        
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var lib_a;" + EOL + "var app;" + EOL, sec.getConcatenation().toString());
+    }
+    
+    @Test
+    public void test_file_added_to_a_directory_a_nested_require_was_looked_up_through_should_be_found() throws Exception {
+        new File(dir, "a/foo").mkdirs();
+        Preprocessor pp = watchNested();
+        FileUtils.writeStringToFile(new File(dir, "a/foo/lib.js"), "var foo_a;" + EOL);
+        waitForChange();
+        
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var foo_a;" + EOL, pp.getConcatenation().toString());
+    }
+    
+    @Test
+    public void test_directory_a_nested_require_is_looked_up_through_should_be_watched_once_created() throws Exception {
+        Preprocessor pp = watchNested();
+        new File(dir, "a/foo").mkdirs();
+        waitForChange();
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var foo_b;" + EOL, pp.getConcatenation().toString());
+        
+        FileUtils.writeStringToFile(new File(dir, "a/foo/lib.js"), "var foo_a;" + EOL);
+        waitForChange();
+        
+        assertTrue(watcher.rebuildIfChanged());
+        assertEquals("var foo_a;" + EOL, pp.getConcatenation().toString());
+    }
+    
+    @Test
+    public void test_irrelevant_files_should_not_be_seen_as_changes() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "b/notes.txt"), "nothing to see" + EOL);
+        Thread.sleep(500);
+        
+        assertFalse(watcher.hasChanged());
+        assertFalse(watcher.rebuildIfChanged());
+    }
+    
+    /**
+     * Watches a Preprocessor which requires "<foo/lib>",
+     * found in "b/foo", instead of the one of the setup.
+     */
+    private Preprocessor watchNested() throws IOException {
+        FileUtils.writeStringToFile(new File(dir, "nested.js"), "//= require <foo/lib>" + EOL);
+        FileUtils.writeStringToFile(new File(dir, "b/foo/lib.js"), "var foo_b;" + EOL);
+        watcher.close();
+        
+        Preprocessor pp = new Preprocessor(sec.getEnvironment());
+        pp.require(sec.getEnvironment().find("nested.js").getSourceFile());
+        assertEquals("var foo_b;" + EOL, pp.getConcatenation().toString());
+        watcher = new SourceWatcher(pp);
+        watcher.start();
+        return pp;
+    }
+    
+    private void waitForChange() throws InterruptedException {
+        // some WatchServices poll, so it may take a while
+        for (int i = 0; (i < 500) && !watcher.hasChanged(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(watcher.hasChanged());
+    }
+}